@@ -1,5 +1,5 @@
-# Runs ./perf.sh for [1-8]
+# Runs ./perf.sh for [1-11]
 
-for ((i=1;i<=8;i+=1)); do
+for ((i=1;i<=11;i+=1)); do
     ./perf.sh $i
 done
@@ -26,11 +26,11 @@ package java.lang;
  */
 public class InheritableThreadLocal<T> extends ThreadLocal<T> {
 
-    private static final ThreadLocalMap.Factory MAP_FACTORY
+    static final ThreadLocalMap.Factory MAP_FACTORY
             = new ThreadLocalMap.Factory() {
         ThreadLocalMap newMap(Thread current, int length) {
-            return current.inheritableThreadLocals
-                    = new ThreadLocalMap(this, length);
+            return current.inheritableThreadLocals = ThreadLocalMap.create(
+                    this, length, current.inheritableThreadLocals);
         }
 
         ThreadLocalMap getMap(Thread current) {
@@ -42,36 +42,58 @@ public class InheritableThreadLocal<T> extends ThreadLocal<T> {
      * Creates a new inheritable thread local variable.
      */
     public InheritableThreadLocal() {
-        super(MAP_FACTORY);
+        super(unified() ? ThreadLocal.MAP_FACTORY : MAP_FACTORY);
+    }
+
+    /**
+     * Returns true if our entries live in the normal map. See {@link
+     * Flags#UNIFIED}. Decided when we're created, since thread locals
+     * created while the VM boots can't see the flag yet.
+     */
+    private boolean isUnified() {
+        return mapFactory == ThreadLocal.MAP_FACTORY;
     }
 
     @Override
     ThreadLocalReference<T> newReference() {
-        return new InheritableThreadLocalReference<T>(this);
+        return new InheritableThreadLocalReference<T>(this, isUnified());
     }
 
     /**
-     * A specialized implementation that enables us to access the referent
-     * so long as it's still alive. Unlike a vanilla phantom reference, this
-     * implementation enables us to retrieve the referent so we can filter
-     * thread local values when we inherit them.
+     * Marks the keys of inheritable thread locals, so we can filter thread
+     * local values when we inherit them.
      */
     private static class InheritableThreadLocalReference<T>
             extends ThreadLocalReference<T> {
 
-        private InheritableThreadLocalReference(ThreadLocal<T> referent) {
-            super(referent);
+        /** Same as {@link InheritableThreadLocal#isUnified()}. */
+        private final boolean unified;
+
+        private InheritableThreadLocalReference(ThreadLocal<T> referent,
+                boolean unified) {
+            super(referent, false);
+            this.unified = unified;
         }
 
         @Override
         boolean isInheritable() {
             return true;
         }
+
+        @Override
+        boolean inInheritableMap() {
+            return !unified;
+        }
     }
 
     @Override
     @SuppressWarnings("unchecked")
     public T get() {
+        if (isUnified()) {
+            // Our entries live in the normal map.
+            return super.get();
+        }
+
         // Optimized for the fast path...
         Thread currentThread = Thread.currentThread();
         ThreadLocalMap map = currentThread.inheritableThreadLocals;
@@ -80,15 +102,87 @@ public class InheritableThreadLocal<T> extends ThreadLocal<T> {
             int index = reference.hash & map.mask;
             Object[] table = map.table;
             if (reference == VolatileArray.get(table, index)) {
-                return (T) VolatileArray.get(table, index + 1);
+                Object value = VolatileArray.get(table, index + 1);
+                if (value != UNSET) {
+                    return (T) value;
+                }
+                return setInitialValue();
             }
         } else {
-            map = new ThreadLocalMap(MAP_FACTORY,
-                    ThreadLocalMap.INITIAL_LENGTH);
+            map = ThreadLocalMap.create(MAP_FACTORY,
+                    ThreadLocalMap.initialLength(currentThread, reference),
+                    null);
             currentThread.inheritableThreadLocals = map;
         }
 
-        return (T) map.getAfterMiss(this);
+        Object value = map.getAfterMiss(this);
+        return value != UNSET ? (T) value : setInitialValue();
+    }
+
+    @Override
+    public void set(T value) {
+        if (isUnified()) {
+            super.set(value);
+            return;
+        }
+
+        // Same as ThreadLocal.set(), but against our own map.
+        Thread currentThread = Thread.currentThread();
+        ThreadLocalMap map = currentThread.inheritableThreadLocals;
+        if (map != null) {
+            ThreadLocalReference<T> reference = this.reference;
+            int index = reference.hash & map.mask;
+            Object[] table = map.table;
+            if (reference == VolatileArray.get(table, index)) {
+                VolatileArray.set(table, index + 1, value);
+                return;
+            }
+        }
+
+        setAfterMiss(currentThread, map, value);
+    }
+
+    @Override
+    public void remove() {
+        if (isUnified()) {
+            super.remove();
+        } else {
+            remove(Thread.currentThread().inheritableThreadLocals);
+        }
+    }
+
+    /**
+     * Creates an inheritable thread local variable whose initial value in
+     * each thread comes from the given supplier. Child threads inherit the
+     * parent thread's value as is. See {@link ThreadLocal#withInitial}.
+     *
+     * @throws NullPointerException if supplier is null
+     */
+    public static <S> InheritableThreadLocal<S> withInitial(
+            Supplier<? extends S> supplier) {
+        return new SuppliedInheritableThreadLocal<S>(supplier);
+    }
+
+    /**
+     * Inheritable thread local whose initial values come from a {@link
+     * Supplier}.
+     */
+    private static final class SuppliedInheritableThreadLocal<T>
+            extends InheritableThreadLocal<T> {
+
+        private final Supplier<? extends T> supplier;
+
+        SuppliedInheritableThreadLocal(Supplier<? extends T> supplier) {
+            if (supplier == null) {
+                throw new NullPointerException("supplier");
+            }
+            this.supplier = supplier;
+        }
+
+        @Override
+        protected T initialValue() {
+            return supplier.get();
+        }
     }
 
     /**
@@ -104,28 +198,43 @@ public class InheritableThreadLocal<T> extends ThreadLocal<T> {
      * Transfers inheritable values from parent to child thread. Executes in
      * parent thread.
      */
-    @SuppressWarnings({"unchecked"})
     static void inheritValues(ThreadLocalMap parentMap,
             ThreadLocalMap childMap) {
-        Object[] parentTable = parentMap.table;
+        for (Object[] parentTable : parentMap.tables()) {
+            inheritValues(parentTable, childMap);
+        }
+    }
+
+    /**
+     * Transfers inheritable values from one of the parent's tables.
+     */
+    @SuppressWarnings({"unchecked"})
+    private static void inheritValues(Object[] parentTable,
+            ThreadLocalMap childMap) {
         for (int i = parentTable.length - 2; i >= 0; i -= 2) {
             // No need for a volatile read. The write happened in this thread.
             Object k = parentTable[i];
 
-            if (k == null || k == TOMBSTONE) {
+            if (k == null || k == TOMBSTONE || parentTable[i + 1] == UNSET) {
                 // Skip this entry.
                 continue;
             }
 
             // The table can only contain null, tombstones and references.
             ThreadLocalReference reference = (ThreadLocalReference) k;
+            if (!reference.isInheritable()) {
+                // A normal thread local in a unified map.
+                continue;
+            }
+
             // Raw type enables us to pass in an Object below.
             InheritableThreadLocal key
                     = (InheritableThreadLocal) reference.get();
             if (key != null) {
                 /*
                  * Replace value with filtered value. We shouldn't need to
-                 * rehash since we adopted the same length as our parent.
+                 * rehash since we sized the map for every live inheritable
+                 * entry.
                  * We should just let exceptions bubble out and tank the
                  * thread creation
                  */
@@ -0,0 +1,434 @@
+/*
+ * Copyright (C) 2008 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package java.lang;
+
+import java.lang.ThreadLocal.ThreadLocalMap;
+import java.lang.ThreadLocal.ThreadLocalReference;
+
+import sun.misc.Unsafe;
+
+/**
+ * Map that uses Robin Hood hashing. When an insertion passes an entry
+ * that sits closer to its home slot than the new entry would, the new entry
+ * takes that slot, and we carry on inserting the displaced entry. This keeps
+ * probe lengths short and even, and lookups for absent keys can stop as soon
+ * as they reach an entry that's closer to home than the key would be.
+ * Removal shifts the following entries back by one slot instead of leaving
+ * a tombstone, so the map never fills up with dead slots.
+ *
+ * <p>Moving entries around isn't safe if the Cleaner can write to the table
+ * at the same time, and making it safe would slow down the owning thread.
+ * Instead, only the owning thread ever writes to the table. The Cleaner just
+ * hands the map the keys of reclaimed thread locals, and the owning thread
+ * looks them up and removes them the next time it modifies the map or misses,
+ * or before we copy or count the table's entries. The value of a reclaimed
+ * thread local lingers until then, so a thread that only ever hits in
+ * {@link ThreadLocal#get()} keeps it until it exits, and so does its hash,
+ * which no new thread local gets while the entry is still in the table.
+ * Checking on every hit would slow down the fast path of every map, so we
+ * accept that. See {@link ThreadLocal.Flags#ROBIN_HOOD}.
+ */
+class RobinHoodThreadLocalMap extends ThreadLocalMap {
+
+    /** Number of entries, including reclaimed entries we haven't swept. */
+    private int size;
+
+    /** Maximum number of entries before we must grow the map. */
+    private final int maximumSize;
+
+    /**
+     * Set once we remove an entry. Until then, the map can only be sparse
+     * because it was created big, by {@link ThreadLocal#reserveCapacity}
+     * for example, so we don't shrink it.
+     */
+    private boolean removed;
+
+    /**
+     * Keys of reclaimed thread locals that may have entries in this map, or
+     * null. The Cleaner pushes keys, and the owning thread takes the whole
+     * list.
+     */
+    private volatile Reclaimed reclaimed;
+
+    /**
+     * A list of keys the Cleaner reclaimed.
+     */
+    private static final class Reclaimed {
+
+        /** Reclaimed key, or null if this node just asks for a sweep. */
+        final ThreadLocalReference<?> key;
+
+        /** True if we hold the key until the owning thread takes the list. */
+        final boolean held;
+
+        final Reclaimed next;
+
+        /** Number of keys in this list. */
+        final int size;
+
+        /**
+         * True if the owning thread should sweep the table instead of
+         * looking up the keys.
+         */
+        final boolean sweep;
+
+        Reclaimed(ThreadLocalReference<?> key, boolean held, Reclaimed next,
+                int size, boolean sweep) {
+            this.key = key;
+            this.held = held;
+            this.next = next;
+            this.size = size;
+            this.sweep = sweep;
+        }
+    }
+
+    private static final Unsafe unsafe = Unsafe.getUnsafe();
+    private static final long reclaimedOffset;
+
+    static {
+        try {
+            reclaimedOffset = unsafe.objectFieldOffset(
+                    RobinHoodThreadLocalMap.class.getDeclaredField(
+                            "reclaimed"));
+        } catch (NoSuchFieldException e) {
+            throw new Error(e);
+        }
+    }
+
+    private boolean compareAndSetReclaimed(Reclaimed expected,
+            Reclaimed update) {
+        return unsafe.compareAndSwapObject(this, reclaimedOffset, expected,
+                update);
+    }
+
+    /**
+     * Constructs an empty map with the given array length.
+     *
+     * @param length of the underlying array, must be power of 2,
+     *  2X capacity
+     */
+    RobinHoodThreadLocalMap(Factory factory, int length) {
+        super(factory, length);
+        this.maximumSize = (length >> 3) * 3; // 3/4 capacity
+    }
+
+    /**
+     * Returns how far the entry at the given index is from its home slot,
+     * counted in entries.
+     */
+    private int distance(Object key, int index) {
+        return ((index - ((ThreadLocalReference<?>) key).hash) & mask) >> 1;
+    }
+
+    /**
+     * Finds the given reference.
+     *
+     * @return index of the key, or -1 if the map doesn't contain it
+     */
+    int indexOf(ThreadLocalReference<?> reference) {
+        Object[] table = this.table;
+        int index = reference.hash & mask;
+        for (int distance = 0;; distance++) {
+            Object k = table[index];
+            if (k == reference) {
+                return index;
+            }
+
+            // If the key were here, it would have displaced this entry.
+            if (k == null || distance(k, index) < distance) {
+                return -1;
+            }
+
+            index = (index + 2) & mask;
+        }
+    }
+
+    boolean canAdd(int entries) {
+        return size + entries <= maximumSize;
+    }
+
+    ThreadLocalMap maybeRehash(ThreadLocalReference<?> reference) {
+        removeReclaimed();
+
+        boolean sparse = removed && isSparse(size);
+        int minimumLength = 0;
+        if (ThreadLocal.dense() && reference.hash > mask) {
+            minimumLength = reference.hash + 2;
+        } else if (size < maximumSize && !sparse) {
+            return this;
+        }
+
+        int length;
+        if (sparse) {
+            length = shrunkCapacity(minimumLength) << 1;
+        } else {
+            // We don't have tombstones to get rid of, so we grow.
+            length = table.length << 1;
+            while (length < minimumLength) {
+                length <<= 1;
+            }
+        }
+
+        return rehash(length);
+    }
+
+    /**
+     * Moves the live entries into a new map.
+     *
+     * @param length array length of the new map
+     * @return new map
+     */
+    private ThreadLocalMap rehash(int length) {
+        ThreadLocalMap newMap = factory.newMap(Thread.currentThread(), length);
+
+        Object[] table = this.table;
+        for (int i = table.length - 2; i >= 0; i -= 2) {
+            Object k = table[i];
+            if (k == null) {
+                continue;
+            }
+
+            ThreadLocalReference<?> reference = (ThreadLocalReference<?>) k;
+            ThreadLocal<?> threadLocal = reference.get();
+            if (threadLocal != null) {
+                /*
+                 * Ensure that threadLocal doesn't get garbage collected
+                 * during put(). Otherwise, the Cleaner could hand its key to
+                 * this map instead of the new one, and we'd leak the value
+                 * until the next rehash.
+                 */
+                pin = threadLocal;
+                newMap.put(reference, table[i + 1]);
+                pin = null;
+            }
+        }
+
+        retire();
+        return newMap;
+    }
+
+    void put(ThreadLocalReference<?> reference, Object value) {
+        removeReclaimed();
+
+        Object[] table = this.table;
+        Object key = reference;
+        int index = reference.hash & mask;
+        for (int distance = 0;; distance++) {
+            Object k = table[index];
+
+            if (k == null) {
+                table[index + 1] = value;
+                table[index] = key;
+                size++;
+                return;
+            }
+
+            if (k == key) {
+                // Replace existing entry.
+                table[index + 1] = value;
+                return;
+            }
+
+            int kDistance = distance(k, index);
+            if (kDistance < distance) {
+                // Take this slot, and carry on inserting the entry we
+                // displaced. The original key can't be further along.
+                Object v = table[index + 1];
+                table[index + 1] = value;
+                table[index] = key;
+                key = k;
+                value = v;
+                distance = kDistance;
+            }
+
+            index = (index + 2) & mask;
+        }
+    }
+
+    Object getAfterMiss(ThreadLocal<?> key) {
+        removeReclaimed();
+
+        ThreadLocalReference<?> reference = key.reference;
+        int index = indexOf(reference);
+        if (index != -1) {
+            return table[index + 1];
+        }
+
+        Object value = key.initialValue();
+
+        // initialValue() may have replaced the map.
+        factory.getMap(Thread.currentThread()).maybeRehash(reference)
+                .put(reference, value);
+        return value;
+    }
+
+    Object lookup(ThreadLocalReference<?> reference) {
+        int index = indexOf(reference);
+        return index == -1 ? ThreadLocal.ABSENT : table[index + 1];
+    }
+
+    void remove(ThreadLocalReference<?> key) {
+        removeReclaimed();
+
+        int index = indexOf(key);
+        if (index != -1) {
+            delete(index);
+        }
+    }
+
+    /**
+     * Removes the entry at the given index and shifts the entries after it
+     * back by one slot, until we reach an empty slot or an entry that's
+     * already in its home slot.
+     */
+    private void delete(int index) {
+        Object[] table = this.table;
+        for (int next = (index + 2) & mask;; next = (next + 2) & mask) {
+            Object k = table[next];
+            if (k == null || distance(k, next) == 0) {
+                break;
+            }
+
+            table[index] = k;
+            table[index + 1] = table[next + 1];
+            index = next;
+        }
+
+        table[index] = null;
+        table[index + 1] = null;
+        size--;
+        removed = true;
+    }
+
+    /**
+     * Hands the key to the owning thread, which will remove the entry.
+     *
+     * <p>We hold the key until then, so that a new thread local doesn't
+     * get its hash while the old entry is still in the table. Holding every
+     * key in every map would let a thread that rarely touches its map keep
+     * the hashes of all thread locals reclaimed in the meantime, so we only
+     * hold keys we find in the table. We read the table while the owning
+     * thread may be moving entries, and might miss an entry that's there,
+     * so we still hand over keys we don't find. Once the list gets longer
+     * than 1/8 of this map's capacity, looking up that many keys would cost
+     * about as much as sweeping the whole table, so we ask for a sweep
+     * instead of handing over more keys we didn't find.
+     */
+    void expunge(ThreadLocalReference<?> key) {
+        boolean found = indexOf(key) != -1;
+        if (found) {
+            key.hold();
+        }
+        while (true) {
+            Reclaimed head = reclaimed;
+            int size = head == null ? 0 : head.size;
+            boolean sweep = head != null && head.sweep;
+
+            Reclaimed update;
+            if (found) {
+                update = new Reclaimed(key, true, head, size + 1, sweep);
+            } else if (sweep) {
+                return;
+            } else if (size >= (capacity() >> 3)) {
+                update = new Reclaimed(null, false, head, size, true);
+            } else {
+                update = new Reclaimed(key, false, head, size + 1, false);
+            }
+            if (compareAndSetReclaimed(head, update)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Takes the list of keys the Cleaner handed us since we last checked.
+     * The Cleaner starts a new one.
+     */
+    private Reclaimed takeReclaimed() {
+        Reclaimed list;
+        do {
+            list = reclaimed;
+        } while (list != null && !compareAndSetReclaimed(list, null));
+        return list;
+    }
+
+    /**
+     * Lets go of the keys we found in the table.
+     */
+    private static void releaseHolds(Reclaimed list) {
+        for (; list != null; list = list.next) {
+            if (list.held) {
+                list.key.releaseHold();
+            }
+        }
+    }
+
+    /**
+     * Removes the entries of the thread locals the Cleaner reclaimed since
+     * we last checked, then lets go of their keys.
+     */
+    private void removeReclaimed() {
+        if (reclaimed == null) {
+            return;
+        }
+
+        Reclaimed list = takeReclaimed();
+        if (list == null) {
+            return;
+        }
+
+        if (list.sweep || list.size > (capacity() >> 3)) {
+            sweep();
+        } else {
+            for (Reclaimed node = list; node != null; node = node.next) {
+                int index = indexOf(node.key);
+                if (index != -1) {
+                    delete(index);
+                }
+            }
+        }
+        releaseHolds(list);
+    }
+
+    /**
+     * Removes reclaimed entries too, so we don't copy or count them.
+     */
+    void settle() {
+        removeReclaimed();
+    }
+
+    void retire() {
+        releaseHolds(takeReclaimed());
+    }
+
+    /**
+     * Removes the entries of all reclaimed thread locals.
+     */
+    private void sweep() {
+        Object[] table = this.table;
+        int i = 0;
+        while (i < table.length) {
+            Object k = table[i];
+            if (k != null && ((ThreadLocalReference<?>) k).get() == null) {
+                // delete() may shift another entry into this slot.
+                delete(i);
+            } else {
+                i += 2;
+            }
+        }
+    }
+}
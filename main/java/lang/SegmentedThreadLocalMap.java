@@ -0,0 +1,353 @@
+/*
+ * Copyright (C) 2008 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package java.lang;
+
+import java.lang.ThreadLocal.LinearProbingMap;
+import java.lang.ThreadLocal.ThreadLocalMap;
+import java.lang.ThreadLocal.ThreadLocalReference;
+import java.lang.ThreadLocal.VolatileArray;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Map for threads with very many thread locals. Instead of one big table,
+ * we keep a directory of fixed-size chunks, and each chunk is a small
+ * linear probing table. This is extendible hashing: the hash bits just above
+ * the ones that pick a slot within a chunk pick the directory slot. When a
+ * chunk fills up, we split it in two on the next hash bit, doubling the
+ * directory if necessary. Growing never copies more than one chunk, and
+ * chunks rarely grow past {@link #CHUNK_LENGTH}, so large tables stay out of
+ * the garbage collector's humongous object regions. The directory needs one
+ * slot for every few hundred entries, and stops doubling at {@link
+ * #MAXIMUM_DIRECTORY_LENGTH}, which keeps it out of those regions too.
+ * Beyond that, chunks grow instead of splitting. A lookup touches the
+ * directory and then a single chunk.
+ *
+ * <p>This map's own table is an empty placeholder. When {@link
+ * ThreadLocal#get()} misses there, it checks the home slot in the chunk
+ * inline before it falls through to {@link #getAfterMiss}, which moves hot
+ * entries into their home slots just like a {@link LinearProbingMap} does.
+ *
+ * <p>The Cleaner removes entries from chunks directly, just like it does
+ * with a {@link LinearProbingMap}. When we split a chunk, we publish the new
+ * chunks before we copy entries into them and pin each entry while we copy
+ * it, for the same reasons {@code LinearProbingMap.rehash()} installs the
+ * new map first and pins entries.
+ */
+class SegmentedThreadLocalMap extends ThreadLocalMap {
+
+    /** We only use this map for array lengths of at least 16k. */
+    static final int MINIMUM_LENGTH = 1 << 14;
+
+    /** Array length of a chunk. Capacity = 512 */
+    static final int CHUNK_LENGTH = 1024;
+
+    /** log2(CHUNK_LENGTH). Hash bits above this pick a directory slot. */
+    private static final int CHUNK_SHIFT = 10;
+
+    /**
+     * Largest directory length. With 8-byte references, a directory this
+     * long takes 256k, half of the smallest size that G1 treats as
+     * humongous.
+     */
+    static final int MAXIMUM_DIRECTORY_LENGTH = 1 << 15;
+
+    /** We don't split chunks beyond this depth. */
+    private static final int MAXIMUM_DEPTH
+            = Integer.numberOfTrailingZeros(MAXIMUM_DIRECTORY_LENGTH);
+
+    /**
+     * Largest array length of a chunk below the maximum depth. Chunks only
+     * grow past {@link #CHUNK_LENGTH} when splitting wouldn't help, see
+     * {@link #makeRoom}. Hashes that no split could separate share bits 10
+     * through 30 and are even, so there are at most 1024 different ones,
+     * which fit in a chunk this long. At the maximum depth, chunks grow as
+     * far as they need to.
+     */
+    static final int MAXIMUM_CHUNK_LENGTH = CHUNK_LENGTH << 2;
+
+    /**
+     * A chunk of the table.
+     */
+    static class Chunk extends LinearProbingMap {
+
+        /**
+         * Number of low directory index bits that all of this chunk's slots
+         * in the directory have in common. A chunk appears in
+         * directory.length >> depth slots.
+         */
+        final int depth;
+
+        Chunk(Factory factory, int length, int depth) {
+            super(factory, length);
+            this.depth = depth;
+        }
+    }
+
+    /**
+     * Chunks indexed by hash bits. The length is a power of 2. Written by
+     * the owning thread and read by the Cleaner.
+     */
+    private volatile Object[] directory;
+
+    /**
+     * Constructs an empty map with the given total array length.
+     *
+     * @param length of the underlying arrays combined, must be power of 2,
+     *  2X capacity
+     */
+    SegmentedThreadLocalMap(Factory factory, int length) {
+        // An empty table. get() always misses here and checks the chunk.
+        super(factory, 2);
+
+        int chunks = Math.min(Math.max(length / CHUNK_LENGTH, 1),
+                MAXIMUM_DIRECTORY_LENGTH);
+        int chunkLength = Math.max(length / chunks, CHUNK_LENGTH);
+        int depth = Integer.numberOfTrailingZeros(chunks);
+        Object[] directory = new Object[chunks];
+        for (int i = 0; i < chunks; i++) {
+            directory[i] = new Chunk(factory, chunkLength, depth);
+        }
+        this.directory = directory;
+    }
+
+    /**
+     * Returns the chunk that holds entries with the given hash.
+     */
+    Chunk chunkFor(int hash) {
+        Object[] directory = this.directory;
+        return (Chunk) VolatileArray.get(directory,
+                (hash >>> CHUNK_SHIFT) & (directory.length - 1));
+    }
+
+    Object getAfterMiss(ThreadLocal<?> key) {
+        ThreadLocalReference<?> reference = key.reference;
+        Chunk chunk = chunkFor(reference.hash);
+        int index = chunk.indexOf(reference);
+        if (index != -1) {
+            // get() already checked the home slot.
+            Object value = VolatileArray.get(chunk.table, index + 1);
+            chunk.offHomeHit(key, index);
+            return value;
+        }
+
+        Object value = key.initialValue();
+
+        // initialValue() may have replaced the map.
+        factory.getMap(Thread.currentThread()).maybeRehash(reference)
+                .put(reference, value);
+        return value;
+    }
+
+    Object lookup(ThreadLocalReference<?> reference) {
+        return chunkFor(reference.hash).lookup(reference);
+    }
+
+    /**
+     * We never replace this map. {@link #put} makes room in a chunk as
+     * needed.
+     */
+    ThreadLocalMap maybeRehash(ThreadLocalReference<?> reference) {
+        return this;
+    }
+
+    void put(ThreadLocalReference<?> reference, Object value) {
+        chunkWithRoom(reference.hash).put(reference, value);
+    }
+
+    void remove(ThreadLocalReference<?> key) {
+        chunkFor(key.hash).delete(key);
+    }
+
+    /**
+     * Removes the entry directly. We publish new chunks before we copy
+     * entries into them, so we'll find the chunk that holds a live entry.
+     */
+    void expunge(ThreadLocalReference<?> key) {
+        chunkFor(key.hash).expunge(key);
+    }
+
+    /**
+     * Always true. We grow one chunk at a time and never rehash.
+     */
+    boolean hasRoomFor(int entries) {
+        return true;
+    }
+
+    /**
+     * Always true. {@link #put} makes room in a chunk as needed.
+     */
+    boolean canAdd(int entries) {
+        return true;
+    }
+
+    Object[][] tables() {
+        List<Object[]> tables = new ArrayList<Object[]>();
+        Object[] directory = this.directory;
+        for (int i = 0; i < directory.length; i++) {
+            Chunk chunk = (Chunk) directory[i];
+
+            // Only count a chunk at its first slot.
+            if (i < (1 << chunk.depth)) {
+                tables.add(chunk.table);
+            }
+        }
+        return tables.toArray(new Object[tables.size()][]);
+    }
+
+    /**
+     * Returns the chunk for the given hash, after making sure it can take
+     * another entry.
+     */
+    private Chunk chunkWithRoom(int hash) {
+        while (true) {
+            Chunk chunk = chunkFor(hash);
+            if (chunk.hasRoom()) {
+                return chunk;
+            }
+            makeRoom(chunk);
+        }
+    }
+
+    /**
+     * Replaces a full chunk. If the chunk is mostly tombstones, replaces it
+     * with a fresh copy. Otherwise, splits it in two, even if all of its
+     * entries go to one half, in which case {@link #chunkWithRoom} splits
+     * that half again on the next bit. A chunk grows instead, up to
+     * {@link #MAXIMUM_CHUNK_LENGTH}, if no split could separate its
+     * entries. Dense hashes pack 512 keys into every 1024 hashes, for
+     * example, and splitting those all the way down would only blow up the
+     * directory. At the maximum depth, a chunk just grows.
+     */
+    private void makeRoom(Chunk chunk) {
+        int liveEntries = 0;
+
+        // Whether the live entries differ in any of the bits we could
+        // still split on. Splits never use bit 31.
+        int shift = CHUNK_SHIFT + chunk.depth;
+        int bits = -1;
+        boolean separable = false;
+
+        Object[] table = chunk.table;
+        for (int i = table.length - 2; i >= 0; i -= 2) {
+            Object k = VolatileArray.get(table, i);
+            if (k instanceof ThreadLocalReference<?>
+                    && ((ThreadLocalReference<?>) k).get() != null) {
+                liveEntries++;
+                int hashBits = (((ThreadLocalReference<?>) k).hash
+                        & Integer.MAX_VALUE) >>> shift;
+                if (bits == -1) {
+                    bits = hashBits;
+                } else if (hashBits != bits) {
+                    separable = true;
+                }
+            }
+        }
+
+        if (liveEntries < (chunk.capacity() >> 1)) {
+            // Mostly tombstones. Copy the live entries into a fresh chunk.
+            replace(chunk, new Chunk(factory, table.length, chunk.depth));
+        } else if (chunk.depth < MAXIMUM_DEPTH && (separable
+                || table.length >= MAXIMUM_CHUNK_LENGTH)) {
+            split(chunk, 1 << shift);
+        } else {
+            int length = table.length << 1;
+            if (chunk.depth < MAXIMUM_DEPTH) {
+                length = Math.min(length, MAXIMUM_CHUNK_LENGTH);
+            }
+            replace(chunk, new Chunk(factory, length, chunk.depth));
+        }
+    }
+
+    /**
+     * Replaces the given chunk with a new one.
+     */
+    private void replace(Chunk chunk, Chunk replacement) {
+        Object[] directory = this.directory;
+        for (int i = firstSlot(directory, chunk); i < directory.length;
+                i += 1 << chunk.depth) {
+            VolatileArray.set(directory, i, replacement);
+        }
+        copy(chunk, replacement, null, 0);
+    }
+
+    /**
+     * Splits the given chunk in two.
+     */
+    private void split(Chunk chunk, int splitBit) {
+        Object[] directory = this.directory;
+        if ((1 << chunk.depth) == directory.length) {
+            // This chunk has a slot to itself. Double the directory. Both
+            // halves point to the same chunks for now.
+            Object[] doubled = new Object[directory.length << 1];
+            System.arraycopy(directory, 0, doubled, 0, directory.length);
+            System.arraycopy(directory, 0, doubled, directory.length,
+                    directory.length);
+            this.directory = directory = doubled;
+        }
+
+        int length = chunk.table.length;
+        Chunk lower = new Chunk(factory, length, chunk.depth + 1);
+        Chunk upper = new Chunk(factory, length, chunk.depth + 1);
+
+        // Publish the new chunks before we copy entries into them.
+        int lowerBit = 1 << chunk.depth;
+        for (int i = firstSlot(directory, chunk); i < directory.length;
+                i += lowerBit) {
+            VolatileArray.set(directory, i, (i & lowerBit) == 0
+                    ? lower : upper);
+        }
+
+        copy(chunk, lower, upper, splitBit);
+    }
+
+    /**
+     * Returns the first directory slot that points to the given chunk.
+     */
+    private static int firstSlot(Object[] directory, Chunk chunk) {
+        int i = 0;
+        while (directory[i] != chunk) {
+            i++;
+        }
+        return i;
+    }
+
+    /**
+     * Copies the live entries from one chunk to another. If upper isn't
+     * null, entries whose hash has the split bit set go there instead.
+     */
+    private void copy(Chunk from, Chunk lower, Chunk upper, int splitBit) {
+        Object[] table = from.table;
+        for (int i = table.length - 2; i >= 0; i -= 2) {
+            Object k = VolatileArray.get(table, i);
+            if (!(k instanceof ThreadLocalReference<?>)) {
+                // null or tombstone
+                continue;
+            }
+
+            ThreadLocalReference<?> reference = (ThreadLocalReference<?>) k;
+            ThreadLocal<?> threadLocal = reference.get();
+            if (threadLocal != null) {
+                Chunk to = upper != null && (reference.hash & splitBit) != 0
+                        ? upper : lower;
+                pin = threadLocal;
+                to.put(reference, VolatileArray.get(table, i + 1));
+                pin = null;
+            }
+        }
+    }
+}
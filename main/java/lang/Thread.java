@@ -2,6 +2,13 @@
  * Changes to original OpenJDK version:
  *
  *   1. Added 'volatile' to threadLocals and inheritableThreadLocals.
+ *   2. Inherit through ThreadLocal.inheritThreadLocals(), which also
+ *      copies from threadLocals in unified mode. Only called if the parent
+ *      has a map, so init() never initializes ThreadLocal.
+ *   3. Added directThreadLocals.
+ *   4. Call ThreadLocal.threadExiting() from exit().
+ *   5. Added nextThreadLocalHash and threadLocalHashesLeft.
+ *   6. Added reusedThreadLocalHashes and reusedThreadLocalHashesLeft.
  */
 
 /*
@@ -184,6 +191,28 @@ class Thread implements Runnable {
      */
     volatile ThreadLocal.ThreadLocalMap inheritableThreadLocals = null;
 
+    /*
+     * Entries for ThreadLocals that reserved a direct slot. Keys and values
+     * alternate, like in a ThreadLocalMap table. This array is maintained
+     * by the ThreadLocal class.
+     */
+    volatile Object[] directThreadLocals = null;
+
+    /*
+     * Block of hashes this thread reserved for lightweight ThreadLocals.
+     * Only accessed by this thread. Maintained by the ThreadLocal class.
+     */
+    int nextThreadLocalHash;
+    int threadLocalHashesLeft;
+
+    /*
+     * Batch of hashes of reclaimed ThreadLocals this thread took from the
+     * shared pool, and how many of them it hasn't used yet. Only accessed
+     * by this thread. Maintained by the ThreadLocal class.
+     */
+    int[] reusedThreadLocalHashes;
+    int reusedThreadLocalHashesLeft;
+
     /*
      * The requested stack size for this thread, or 0 if the creator did
      * not specify a stack size.  It is up to the VM to do whatever it
@@ -377,9 +406,9 @@ class Thread implements Runnable {
         this.inheritedAccessControlContext = AccessController.getContext();
         this.target = target;
         setPriority(priority);
-        if (parent.inheritableThreadLocals != null)
-            this.inheritableThreadLocals =
-                ThreadLocal.createInheritedMap(parent.inheritableThreadLocals);
+        if (parent.threadLocals != null
+                || parent.inheritableThreadLocals != null)
+            ThreadLocal.inheritThreadLocals(parent, this);
         /* Stash the specified stack size in case the VM cares */
         this.stackSize = stackSize;
 
@@ -648,6 +677,7 @@ class Thread implements Runnable {
      * a chance to clean up before it actually exits.
      */
     private void exit() {
+        ThreadLocal.threadExiting(this);
         if (group != null) {
             group.remove(this);
             group = null;
@@ -657,6 +687,7 @@ class Thread implements Runnable {
         /* Speed the release of some of these resources */
         threadLocals = null;
         inheritableThreadLocals = null;
+        directThreadLocals = null;
         inheritedAccessControlContext = null;
         blocker = null;
         uncaughtExceptionHandler = null;
@@ -16,14 +16,26 @@
 
 package java.lang;
 
+import java.io.Closeable;
+import java.lang.ref.Reference;
 import java.lang.ref.ReferenceQueue;
 import java.lang.ref.PhantomReference;
 import java.lang.ref.WeakReference;
+import java.security.AccessController;
+import java.security.PrivilegedAction;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 import sun.misc.Unsafe;
+import sun.misc.VM;
 
 /**
  * A variable for which each thread has its own value. Supports {@code null}
@@ -35,12 +47,14 @@ import sun.misc.Unsafe;
 public class ThreadLocal<T> {
 
     /**
-     * Factory for normal (non-inheritable) thread locals.
+     * Factory for normal (non-inheritable) thread locals. In unified mode,
+     * inheritable thread locals use it, too.
      */
-    private static final ThreadLocalMap.Factory MAP_FACTORY
+    static final ThreadLocalMap.Factory MAP_FACTORY
             = new ThreadLocalMap.Factory() {
         ThreadLocalMap newMap(Thread current, int length) {
-            return current.threadLocals = new ThreadLocalMap(this, length);
+            return current.threadLocals = ThreadLocalMap.create(this, length,
+                    current.threadLocals);
         }
 
         ThreadLocalMap getMap(Thread current) {
@@ -51,18 +65,238 @@ public class ThreadLocal<T> {
     /** Placeholder for deleted keys of deleted entries. */
     static final Object TOMBSTONE = new Object();
 
-    /** Canonical phantom reference to this thread local instance. */
+    /** Returned by lookups that don't find an entry. */
+    static final Object ABSENT = new Object();
+
+    /**
+     * Value of an entry whose variable is unset. Closing a {@link Binding}
+     * for a variable that had no value stores this instead of removing the
+     * entry, which could leave a tombstone behind. Reads treat the entry as
+     * missing, and the next write reuses it.
+     */
+    static final Object UNSET = new Object();
+
+    /**
+     * Settings we read from system properties. The VM initializes
+     * ThreadLocal before it sets up the system properties, so our own static
+     * initializer would only ever see the defaults. Nothing loads this class
+     * until the VM has booted. Until then, every mode is off. Use the
+     * accessors below, like {@link #dense()}, which check.
+     */
+    static final class Flags {
+
+        /**
+         * If true, each ThreadLocal gets a small, dense index instead of a
+         * spread out hash, and each map grows its table to cover the indices it
+         * holds. Live entries then always sit in their home slots, so lookups
+         * never probe. Tables are sized by the largest index a thread uses
+         * rather than by how many locals it uses, so the Cleaner recycles the
+         * indices of reclaimed thread locals. Enable with
+         * {@code -Djava.lang.ThreadLocal.dense=true}.
+         */
+        static final boolean DENSE
+                = getBooleanProperty("java.lang.ThreadLocal.dense");
+
+        /**
+         * If true, new maps use Robin Hood hashing instead of linear probing.
+         * See {@link RobinHoodThreadLocalMap}. Enable with
+         * {@code -Djava.lang.ThreadLocal.robinHood=true}.
+         *
+         * <p>Robin Hood maps never fill up with tombstones, but the Cleaner
+         * can't remove their entries. The owning thread does when it misses
+         * or adds or removes an entry. Until then, the values of reclaimed
+         * thread locals stay reachable, and a thread whose lookups all hit
+         * in {@link ThreadLocal#get()} keeps them until it exits. Threads
+         * that churn through thread locals touch their maps often enough;
+         * threads that set a few thread locals and then only read them are
+         * better off with linear probing.
+         */
+        static final boolean ROBIN_HOOD
+                = getBooleanProperty("java.lang.ThreadLocal.robinHood");
+
+        /**
+         * If true, growing a large linear probing map doesn't copy all of its
+         * entries at once. The new map moves them over a few at a time instead.
+         * See {@link LinearProbingMap#migrateFrom}. Enable with
+         * {@code -Djava.lang.ThreadLocal.incrementalRehash=true}.
+         */
+        static final boolean INCREMENTAL_REHASH
+                = getBooleanProperty("java.lang.ThreadLocal.incrementalRehash");
+
+        /**
+         * If true, maps that grow past {@link
+         * SegmentedThreadLocalMap#MINIMUM_LENGTH} split their tables into
+         * fixed-size chunks. See {@link SegmentedThreadLocalMap}. Enable with
+         * {@code -Djava.lang.ThreadLocal.segmented=true}.
+         */
+        static final boolean SEGMENTED
+                = getBooleanProperty("java.lang.ThreadLocal.segmented");
+
+        /**
+         * If true, new maps start out as a {@link TinyThreadLocalMap}, which
+         * holds a few entries in a small table and upgrades itself to a map of
+         * the configured kind when it fills up. Saves memory when there are
+         * many threads that each use only a few thread locals. Enable with
+         * {@code -Djava.lang.ThreadLocal.tiny=true}.
+         */
+        static final boolean TINY
+                = getBooleanProperty("java.lang.ThreadLocal.tiny");
+
+        /**
+         * If true, inheritable thread locals keep their values in the same map
+         * as normal thread locals, {@code Thread.threadLocals}, instead of in a
+         * map of their own. Threads that use both kinds then only pay for one
+         * map. Child threads still only inherit the inheritable entries. Enable
+         * with {@code -Djava.lang.ThreadLocal.unified=true}.
+         */
+        static final boolean UNIFIED
+                = getBooleanProperty("java.lang.ThreadLocal.unified");
+
+        /**
+         * If true, we remember how big maps got in the threads of each thread
+         * group, and a new thread's first map starts out big enough for what
+         * most of its siblings needed. Saves services that create lots of
+         * short-lived threads from growing each thread's map step by step.
+         * Enable with {@code -Djava.lang.ThreadLocal.learnLength=true}.
+         */
+        static final boolean LEARN_LENGTH
+                = getBooleanProperty("java.lang.ThreadLocal.learnLength");
+
+        /**
+         * If true, exiting threads return their map tables to a pool, and new
+         * maps take their tables from it. Saves allocating and collecting
+         * tables when threads come and go quickly. Enable with {@code
+         * -Djava.lang.ThreadLocal.recycleTables=true}.
+         */
+        static final boolean RECYCLE_TABLES
+                = getBooleanProperty("java.lang.ThreadLocal.recycleTables");
+
+        /**
+         * Number of direct slots in each thread. See {@link
+         * #ThreadLocal(boolean)}. Set with {@code
+         * -Djava.lang.ThreadLocal.directSlots=N}. Defaults to 8.
+         */
+        static final int DIRECT_SLOTS
+                = getIntegerProperty("java.lang.ThreadLocal.directSlots", 8);
+
+        /**
+         * Strategy for new threads. See {@link ThreadLocalMap.Strategy}.
+         * Set with {@code -Djava.lang.ThreadLocal.strategy=name}, see
+         * {@link ThreadLocalMap.Strategy#forName} for the names. Last, so a
+         * strategy's constructor sees the other flags.
+         */
+        static final ThreadLocalMap.Strategy STRATEGY
+                = ThreadLocalMap.Strategy.forName(
+                        getProperty("java.lang.ThreadLocal.strategy"));
+    }
+
+    /** See {@link Flags#DENSE}. */
+    static boolean dense() {
+        return VM.isBooted() && Flags.DENSE;
+    }
+
+    /** See {@link Flags#ROBIN_HOOD}. */
+    static boolean robinHood() {
+        return VM.isBooted() && Flags.ROBIN_HOOD;
+    }
+
+    /** See {@link Flags#INCREMENTAL_REHASH}. */
+    static boolean incrementalRehash() {
+        return VM.isBooted() && Flags.INCREMENTAL_REHASH;
+    }
+
+    /** See {@link Flags#SEGMENTED}. */
+    static boolean segmented() {
+        return VM.isBooted() && Flags.SEGMENTED;
+    }
+
+    /** See {@link Flags#TINY}. */
+    static boolean tiny() {
+        return VM.isBooted() && Flags.TINY;
+    }
+
+    /** See {@link Flags#UNIFIED}. */
+    static boolean unified() {
+        return VM.isBooted() && Flags.UNIFIED;
+    }
+
+    /** See {@link Flags#LEARN_LENGTH}. */
+    static boolean learnLength() {
+        return VM.isBooted() && Flags.LEARN_LENGTH;
+    }
+
+    /** See {@link Flags#RECYCLE_TABLES}. */
+    static boolean recycleTables() {
+        return VM.isBooted() && Flags.RECYCLE_TABLES;
+    }
+
+    /**
+     * Hands out indices in dense mode, and to thread locals created before
+     * the VM has booted, since we don't know yet whether we're in dense
+     * mode.
+     */
+    private static final IndexPool DENSE_INDICES = new IndexPool();
+
+    /** Hashes of reclaimed thread locals, when we're not in dense mode. */
+    private static final HashPool FREE_HASHES = new HashPool();
+
+    /**
+     * Holds onto the keys of thread locals that don't have dense indices,
+     * for the same reason {@link IndexPool} holds onto keys. Striped by
+     * hash, so threads that create thread locals at the same time rarely
+     * wait for each other.
+     */
+    private static final KeyList[] HASHED_KEYS = new KeyList[16];
+
+    static {
+        for (int i = 0; i < HASHED_KEYS.length; i++) {
+            HASHED_KEYS[i] = new KeyList();
+        }
+    }
+
+    /**
+     * Returns the stripe of {@link #HASHED_KEYS} that holds the key with
+     * the given hash.
+     */
+    private static KeyList hashedKeys(int hash) {
+        return HASHED_KEYS[(hash >>> 1) & (HASHED_KEYS.length - 1)];
+    }
+
+    /**
+     * Hands out direct slots. Only thread locals created after the VM has
+     * booted get them, because the number of slots comes from {@link
+     * Flags#DIRECT_SLOTS}.
+     */
+    private static final IndexPool DIRECT_SLOT_INDICES = new IndexPool();
+
+    /** Canonical weak reference to this thread local instance. */
     final ThreadLocalReference<T> reference;
 
     /** Factory used to access the ThreadLocalMap. */
-    private final ThreadLocalMap.Factory mapFactory;
+    final ThreadLocalMap.Factory mapFactory;
+
+    /**
+     * Index of this thread local's key in {@code Thread.directThreadLocals},
+     * or -1 if it didn't get a direct slot.
+     */
+    final int directIndex;
 
     /**
      * Creates a new thread local variable using the given factory.
      */
     ThreadLocal(ThreadLocalMap.Factory mapFactory) {
+        this(mapFactory, false);
+    }
+
+    /**
+     * Creates a new thread local variable using the given factory. See
+     * {@link Lightweight}.
+     */
+    ThreadLocal(ThreadLocalMap.Factory mapFactory, boolean lightweight) {
         this.mapFactory = mapFactory;
-        this.reference = newReference();
+        this.reference = lightweight
+                ? new ThreadLocalReference<T>(this, true) : newReference();
+        this.directIndex = -1;
     }
 
     /**
@@ -72,12 +306,53 @@ public class ThreadLocal<T> {
         this(MAP_FACTORY);
     }
 
+    /**
+     * Creates a new thread local variable. If {@code direct} is true, tries
+     * to reserve one of a few slots that every thread keeps for its hottest
+     * thread locals. {@link #get()}, {@link #set(Object)} and {@link
+     * #remove()} go straight to the slot instead of hashing into the
+     * thread's map. If all of the slots are taken, or the VM is still
+     * booting, this thread local uses the map like any other. The slot
+     * frees up when this thread local is garbage collected.
+     */
+    public ThreadLocal(boolean direct) {
+        this.mapFactory = MAP_FACTORY;
+        this.reference = newReference();
+        int slot = direct && VM.isBooted() ? DIRECT_SLOT_INDICES.allocate(
+                reference, Flags.DIRECT_SLOTS) : -1;
+        this.directIndex = slot == -1 ? -1 : slot << 1;
+        reference.directIndex = directIndex;
+    }
+
     /**
      * Creates a ThreadLocalReference for this ThreadLocal. Overridden by
      * {@link InheritableThreadLocal}.
      */
     ThreadLocalReference<T> newReference() {
-        return new ThreadLocalReference<T>(this);
+        return new ThreadLocalReference<T>(this, false);
+    }
+
+    /**
+     * A thread local that's cheaper to create and to garbage collect, for
+     * thread locals that belong to short-lived objects. It needs one
+     * reference object instead of two, and it takes its hash from a block
+     * that the creating thread reserved, so threads that create lots of
+     * thread locals at once don't contend on a shared counter.
+     *
+     * <p>The Cleaner learns that a lightweight thread local is gone as soon
+     * as it's weakly reachable, before finalizers run. If a finalizer
+     * resurrects the thread local and sets it again, that value lingers
+     * until the map rehashes. Lightweight thread locals never get direct
+     * slots.
+     */
+    public static class Lightweight<T> extends ThreadLocal<T> {
+
+        /**
+         * Creates a new lightweight thread local variable.
+         */
+        public Lightweight() {
+            super(MAP_FACTORY, true);
+        }
     }
 
     /**
@@ -85,16 +360,27 @@ public class ThreadLocal<T> {
      * as the key in the ThreadLocalMap instead of the ThreadLocal directly
      * so as not to prevent garbage collection of the ThreadLocal.
      *
-     * <p>We use a PhantomReference instead of a WeakReference because we want
-     * to ensure that the ThreadLocal can't be resurrected after we clean up
-     * its entries.
+     * <p>The Cleaner learns that a normal thread local is gone from a
+     * {@link Tracker}, a PhantomReference, instead of from this reference,
+     * because we want to ensure that the ThreadLocal can't be resurrected
+     * after we clean up its entries. A lightweight thread local does
+     * without the tracker and enqueues this reference itself.
      */
     static class ThreadLocalReference<T>
-            extends PhantomReference<ThreadLocal<T>> {
+            extends WeakReference<ThreadLocal<T>> {
 
         /** Hash counter. */
         private static AtomicInteger hashCounter = new AtomicInteger(0);
 
+        /**
+         * We increment by Doug Lea's Magic Number(TM) (*2 since keys are in
+         * every other bucket) to help prevent clustering.
+         */
+        private static final int HASH_INCREMENT = 0x61c88647 << 1;
+
+        /** Number of hashes a thread reserves at a time. */
+        static final int HASH_BLOCK = 64;
+
         /**
          * Internal hash. Hashes must be even. This ensures that the result of
          * (hash & (table.length - 1)) points to a key and not a value.
@@ -102,32 +388,159 @@ public class ThreadLocal<T> {
         final int hash;
 
         /**
-         * Used to access the referent while it's still alive.
+         * Tells the Cleaner when the referent is gone, or null if this
+         * reference does. We keep the tracker reachable so it gets enqueued.
+         */
+        @SuppressWarnings("UnusedDeclaration")
+        private final Tracker tracker;
+
+        /**
+         * Same as {@link ThreadLocal#directIndex}. Tells the Cleaner where
+         * to look. Set before anyone else can see this reference.
+         */
+        int directIndex = -1;
+
+        /**
+         * True if {@link #hash} came from {@link ThreadLocal#DENSE_INDICES},
+         * so the Cleaner knows where to return it.
+         */
+        private boolean dense;
+
+        /**
+         * Neighbors in {@link ThreadLocal#HASHED_KEYS}. Guarded by the
+         * list's lock.
          */
-        private final WeakReference<ThreadLocal<T>> weakReference;
+        private ThreadLocalReference<?> previousKey, nextKey;
+
+        /**
+         * Number of parties that still have to let go of this key before
+         * we can hand out its hash again: the Cleaner while it cleans up,
+         * plus each Robin Hood map it handed the key to, until the owning
+         * thread removes the entry. See {@link #releaseHold()}.
+         */
+        volatile int holds;
+
+        private static final Unsafe unsafe = Unsafe.getUnsafe();
+        private static final long holdsOffset;
+
+        static {
+            try {
+                holdsOffset = unsafe.objectFieldOffset(
+                        ThreadLocalReference.class.getDeclaredField("holds"));
+            } catch (NoSuchFieldException e) {
+                throw new Error(e);
+            }
+        }
 
-        ThreadLocalReference(ThreadLocal<T> referent) {
+        /**
+         * @param lightweight if true, enqueue this reference when the
+         *  referent is weakly reachable instead of creating a tracker
+         */
+        ThreadLocalReference(ThreadLocal<T> referent, boolean lightweight) {
             /*
              * Accessing Cleaner.queue here triggers Cleaner's static
              * initializer and starts the cleanup thread.
              */
-            super(referent, Cleaner.queue.delegate);
+            super(referent, lightweight ? Cleaner.queue.delegate : null);
+
+            int hash;
+            if (!VM.isBooted() || Flags.DENSE) {
+                // Keep dense hashes even, too. Until the VM has booted, we
+                // don't know if we're in dense mode, so play it safe.
+                hash = DENSE_INDICES.allocate(this) << 1;
+                dense = true;
+            } else if ((hash = reusedHash(Thread.currentThread())) != -1) {
+                // Reuse the slots of a reclaimed thread local.
+            } else if (lightweight) {
+                hash = nextHash(Thread.currentThread());
+            } else {
+                hash = hashCounter.getAndAdd(HASH_INCREMENT);
+            }
+            this.hash = hash;
+            if (!dense) {
+                hashedKeys(hash).add(this);
+            }
 
-            /*
-             * We increment by Doug Lea's Magic Number(TM) (*2 since keys are in
-             * every other bucket) to help prevent clustering.
-             */
-            this.hash = hashCounter.getAndAdd(0x61c88647 << 1);
+            this.tracker = lightweight ? null : new Tracker(referent, this);
+        }
 
-            weakReference = new WeakReference<ThreadLocal<T>>(referent);
+        /**
+         * Takes a hold on this key. Only the Cleaner and maps it hands the
+         * key to take holds, and only after the referent is gone.
+         */
+        void hold() {
+            int holds;
+            do {
+                holds = this.holds;
+            } while (!unsafe.compareAndSwapInt(this, holdsOffset, holds,
+                    holds + 1));
         }
 
         /**
-         * Gets the referent if it's still strongly or softly reachable.
+         * Lets go of a hold. Whoever lets go last hands the hash (or index)
+         * out again and forgets the key.
          */
-        @Override
-        public ThreadLocal<T> get() {
-            return weakReference.get();
+        void releaseHold() {
+            int holds;
+            do {
+                holds = this.holds;
+            } while (!unsafe.compareAndSwapInt(this, holdsOffset, holds,
+                    holds - 1));
+            if (holds > 1) {
+                return;
+            }
+
+            if (dense) {
+                DENSE_INDICES.release(hash >> 1);
+            } else {
+                FREE_HASHES.release(hash);
+                hashedKeys(hash).remove(this);
+            }
+        }
+
+        /**
+         * Returns a hash from the given thread's batch of reclaimed hashes,
+         * or -1 if the batch and the shared pool are both empty. Takes a
+         * new batch from the pool when the thread has used up its last
+         * one, so threads that create lots of thread locals lock the pool
+         * once per batch instead of once per thread local.
+         */
+        private static int reusedHash(Thread current) {
+            int left = current.reusedThreadLocalHashesLeft;
+            if (left == 0) {
+                if (FREE_HASHES.isEmpty()) {
+                    return -1;
+                }
+                int[] batch = current.reusedThreadLocalHashes;
+                if (batch == null) {
+                    current.reusedThreadLocalHashes = batch
+                            = new int[HashPool.BATCH_SIZE];
+                }
+                left = FREE_HASHES.allocate(batch);
+                if (left == 0) {
+                    return -1;
+                }
+            }
+            current.reusedThreadLocalHashesLeft = --left;
+            return current.reusedThreadLocalHashes[left];
+        }
+
+        /**
+         * Returns the next hash from the given thread's block, and reserves
+         * a new block when the thread has used up its last one. Hashes from
+         * one block follow each other in the same sequence that the shared
+         * counter hands out.
+         */
+        private static int nextHash(Thread current) {
+            if (current.threadLocalHashesLeft == 0) {
+                current.nextThreadLocalHash
+                        = hashCounter.getAndAdd(HASH_INCREMENT * HASH_BLOCK);
+                current.threadLocalHashesLeft = HASH_BLOCK;
+            }
+            current.threadLocalHashesLeft--;
+            int hash = current.nextThreadLocalHash;
+            current.nextThreadLocalHash = hash + HASH_INCREMENT;
+            return hash;
         }
 
         /**
@@ -136,6 +549,15 @@ public class ThreadLocal<T> {
         boolean isInheritable() {
             return false;
         }
+
+        /**
+         * Returns true if this thread local keeps its entries in {@code
+         * Thread.inheritableThreadLocals} instead of {@code
+         * Thread.threadLocals}.
+         */
+        boolean inInheritableMap() {
+            return false;
+        }
     }
 
     /**
@@ -148,21 +570,48 @@ public class ThreadLocal<T> {
     public T get() {
         // Optimized for the fast path...
         Thread currentThread = Thread.currentThread();
+        if (directIndex != -1) {
+            return getDirect(currentThread);
+        }
         ThreadLocalMap map = currentThread.threadLocals;
         if (map != null) {
             ThreadLocalReference<T> reference = this.reference;
             int index = reference.hash & map.mask;
             Object[] table = map.table;
+            if (reference != VolatileArray.get(table, index)
+                    && map instanceof SegmentedThreadLocalMap) {
+                // The map has no table of its own. Check the chunk.
+                ThreadLocalMap chunk = ((SegmentedThreadLocalMap) map)
+                        .chunkFor(reference.hash);
+                index = reference.hash & chunk.mask;
+                table = chunk.table;
+            }
             if (reference == VolatileArray.get(table, index)) {
-                return (T) VolatileArray.get(table, index + 1);
+                Object value = VolatileArray.get(table, index + 1);
+                if (value != UNSET) {
+                    return (T) value;
+                }
+                return setInitialValue();
             }
         } else {
-            map = new ThreadLocalMap(MAP_FACTORY,
-                    ThreadLocalMap.INITIAL_LENGTH);
+            map = ThreadLocalMap.create(MAP_FACTORY,
+                    ThreadLocalMap.initialLength(currentThread, reference),
+                    null);
             currentThread.threadLocals = map;
         }
 
-        return (T) map.getAfterMiss(this);
+        Object value = map.getAfterMiss(this);
+        return value != UNSET ? (T) value : setInitialValue();
+    }
+
+    /**
+     * Sets the variable to its initial value and returns it. For entries
+     * that are {@link #UNSET}.
+     */
+    T setInitialValue() {
+        T value = initialValue();
+        set(value);
+        return value;
     }
 
     /**
@@ -174,107 +623,1446 @@ public class ThreadLocal<T> {
     }
 
     /**
-     * Sets the value of this variable for the current thread. If set to
-     * null, the value will be set to null and the underlying entry will still
-     * be present.
+     * Returns the value of this variable for the current thread, or null if
+     * the thread doesn't have one. Unlike {@link #get()}, never calls
+     * {@link #initialValue()} and never creates an entry.
      */
-    public void set(T value) {
-        Thread currentThread = Thread.currentThread();
+    @SuppressWarnings("unchecked")
+    public T getIfPresent() {
+        Object value = lookup(Thread.currentThread());
+        return value == ABSENT ? null : (T) value;
+    }
+
+    /**
+     * Returns true if the current thread has a value for this variable,
+     * even a null one. Never creates an entry.
+     */
+    public boolean isPresent() {
+        return lookup(Thread.currentThread()) != ABSENT;
+    }
+
+    /**
+     * Returns the given thread's value, or {@link #ABSENT} if it doesn't
+     * have one.
+     */
+    Object lookup(Thread currentThread) {
+        if (directIndex != -1) {
+            Object[] entries = currentThread.directThreadLocals;
+            if (entries != null
+                    && VolatileArray.get(entries, directIndex) == reference) {
+                return VolatileArray.get(entries, directIndex + 1);
+            }
+            return ABSENT;
+        }
+
         ThreadLocalMap map = mapFactory.getMap(currentThread);
         if (map == null) {
-            map = mapFactory.newMap(currentThread);
-            map.put(reference, value);
-        } else {
-            map.maybeRehash().put(reference, value);
+            return ABSENT;
         }
+        ThreadLocalReference<T> reference = this.reference;
+        int index = reference.hash & map.mask;
+        Object[] table = map.table;
+        Object value = reference == VolatileArray.get(table, index)
+                ? VolatileArray.get(table, index + 1) : map.lookup(reference);
+        return value != UNSET ? value : ABSENT;
     }
 
     /**
-     * Removes the entry for this variable in the current thread. If this call
-     * is followed by a {@link #get()} before a {@link #set(Object)},
-     * {@code #get()} will call {@link #initialValue()} and create a new
-     * entry with the resulting value.
+     * Sets the value of this variable for the current thread to the
+     * result of the given function and returns it. The function gets the
+     * current value, which comes from {@link #initialValue()} if the thread
+     * doesn't have one yet. When the thread already has an entry, we find
+     * it once and write the new value in place.
      */
-    public void remove() {
+    @SuppressWarnings("unchecked")
+    public T updateAndGet(UnaryOperator<T> function) {
         Thread currentThread = Thread.currentThread();
-        ThreadLocalMap map = mapFactory.getMap(currentThread);
-        if (map != null) {
-            /*
-             * Ensure that this ThreadLocal doesn't get garbage collected
-             * during removal. If the ThreadLocal were to be reclaimed,
-             * the background thread could accidentally overwrite a subsequent
-             * value stored in the same slot.
-             */
-            map.pin = this;
-            map.remove(reference);
-            map.pin = null;
+        Object[] table = currentTable(currentThread);
+        int index = indexIn(currentThread, table);
+        if (index == -1) {
+            T value = function.apply(get());
+            set(value);
+            return value;
         }
+
+        T value = function.apply((T) VolatileArray.get(table, index + 1));
+        storeComputed(currentThread, table, index, value);
+        return value;
     }
 
     /**
-     * Per-thread map of ThreadLocal instances to values.
+     * Sets the value of this variable for the current thread to the result
+     * of applying the given function to the current value and x, and
+     * returns it. See {@link #updateAndGet}.
      */
-    static class ThreadLocalMap {
-
-        /** Capacity = 16 */
-        static final int INITIAL_LENGTH = 32;
+    @SuppressWarnings("unchecked")
+    public T accumulateAndGet(T x, BinaryOperator<T> function) {
+        Thread currentThread = Thread.currentThread();
+        Object[] table = currentTable(currentThread);
+        int index = indexIn(currentThread, table);
+        if (index == -1) {
+            T value = function.apply(get(), x);
+            set(value);
+            return value;
+        }
 
-        /**
-         * Looks up and creates ThreadLocalMaps.
-         */
-        static abstract class Factory {
+        T value = function.apply((T) VolatileArray.get(table, index + 1), x);
+        storeComputed(currentThread, table, index, value);
+        return value;
+    }
 
-            /**
-             * Creates a new map for the given thread with the default array
-             * length.
-             */
-            ThreadLocalMap newMap(Thread current) {
-                return newMap(current, INITIAL_LENGTH);
-            }
+    /**
+     * Sets the value of this variable for the current thread and returns
+     * the previous value, which comes from {@link #initialValue()} if the
+     * thread didn't have one.
+     */
+    @SuppressWarnings("unchecked")
+    public T getAndSet(T value) {
+        Thread currentThread = Thread.currentThread();
+        Object[] table = currentTable(currentThread);
+        int index = indexIn(currentThread, table);
+        if (index == -1) {
+            T previous = get();
+            set(value);
+            return previous;
+        }
 
-            /**
-             * Creates a new map for the given thread with the given array
-             * length.
-             */
-            abstract ThreadLocalMap newMap(Thread current, int length);
+        T previous = (T) VolatileArray.get(table, index + 1);
+        VolatileArray.set(table, index + 1, value);
+        return previous;
+    }
 
-            /**
-             * Gets the map for the given thread.
-             */
-            abstract ThreadLocalMap getMap(Thread current);
+    /**
+     * Returns the value of this variable for the current thread. If the
+     * thread doesn't have one, sets it to the result of the given supplier
+     * instead of calling {@link #initialValue()}.
+     */
+    @SuppressWarnings("unchecked")
+    public T computeIfAbsent(Supplier<? extends T> supplier) {
+        Object value = lookup(Thread.currentThread());
+        if (value != ABSENT) {
+            return (T) value;
         }
 
-        /** Used to turn hashes into indices. */
-        final int mask;
+        T computed = supplier.get();
+        set(computed);
+        return computed;
+    }
 
-        /** Total number of live and dead entries. */
-        private int load;
+    /**
+     * Runs the given action with this variable set to the given value in
+     * the current thread. Afterwards, restores the previous value, or
+     * removes the value if the thread didn't have one. See {@link #bind}.
+     */
+    public void with(T value, Runnable action) {
+        Binding<T> binding = bind(value);
+        try {
+            action.run();
+        } finally {
+            binding.close();
+        }
+    }
 
-        /** Maximum number of entries before we must rebuild the map. */
-        private final int maximumLoad;
+    /**
+     * Calls the given action with this variable set to the given value in
+     * the current thread, and returns its result. Afterwards, restores the
+     * previous value, or removes the value if the thread didn't have one.
+     * See {@link #bind}.
+     */
+    public <R> R with(T value, Callable<R> action) throws Exception {
+        Binding<T> binding = bind(value);
+        try {
+            return action.call();
+        } finally {
+            binding.close();
+        }
+    }
 
-        /**
-         * Number of tombstones in this map. This value is not exact.
-         * We decide whether or not to rehash based upon the load (which
-         * is exact). This rough tombstone count just enables us to estimate
-         * the number of live entries so we can decide whether or not to expand
-         * the entry array.
-         */
-        private final AtomicInteger tombstones;
+    /**
+     * Sets the value of this variable for the current thread and returns a
+     * binding that puts the previous value back when closed. Close
+     * bindings from the thread that created them, innermost first.
+     *
+     * <p>Each binding holds the value it replaced, so nested bindings form
+     * a stack without touching the map. When the thread already has an
+     * entry, binding and closing just swap the value in place, so each
+     * level costs the same however deep the nesting goes. Closing the
+     * outermost binding of a variable that had no value leaves the entry in
+     * place, marked unset, so the next binding can reuse it.
+     */
+    public Binding<T> bind(T value) {
+        Thread currentThread = Thread.currentThread();
+        Object[] table = currentTable(currentThread);
+        int index = indexIn(currentThread, table);
+        Object previous;
+        if (index != -1) {
+            previous = VolatileArray.get(table, index + 1);
+            VolatileArray.set(table, index + 1, value);
+        } else {
+            previous = lookup(currentThread);
+            set(value);
+        }
+        return new Binding<T>(this, previous);
+    }
+
+    /**
+     * Puts back a value saved by {@link #bind}. If the variable had no
+     * value, marks our map entry {@link #UNSET} instead of removing it, so
+     * binding and unbinding over and over doesn't leave tombstones.
+     */
+    @SuppressWarnings("unchecked")
+    private void restore(Object previous) {
+        if (previous == ABSENT && directIndex != -1) {
+            // Removing from a direct slot never leaves a tombstone.
+            remove();
+            return;
+        }
+
+        Thread currentThread = Thread.currentThread();
+        Object[] table = currentTable(currentThread);
+        int index = indexIn(currentThread, table);
+        if (previous == ABSENT) {
+            if (index != -1) {
+                VolatileArray.set(table, index + 1, UNSET);
+            } else if (lookup(currentThread) != ABSENT) {
+                // The entry isn't in the table. A segmented map keeps it
+                // in a chunk, for example. Overwrite it there.
+                set((T) UNSET);
+            }
+        } else if (index != -1) {
+            VolatileArray.set(table, index + 1, previous);
+        } else {
+            set((T) previous);
+        }
+    }
+
+    /**
+     * Restores a thread local's previous value when closed. See {@link
+     * #bind}.
+     */
+    public static final class Binding<T> implements Closeable {
+
+        private final ThreadLocal<T> threadLocal;
+
+        /** Value to restore, or {@link ThreadLocal#ABSENT}. */
+        private final Object previous;
+
+        private boolean closed;
+
+        private Binding(ThreadLocal<T> threadLocal, Object previous) {
+            this.threadLocal = threadLocal;
+            this.previous = previous;
+        }
+
+        /**
+         * Restores the value this binding replaced. Does nothing if the
+         * binding is already closed.
+         */
+        public void close() {
+            if (!closed) {
+                closed = true;
+                threadLocal.restore(previous);
+            }
+        }
+    }
+
+    /**
+     * Returns the current thread's table for this variable: its direct
+     * entries if this variable has a direct slot, or else its map's table.
+     * Null if the thread doesn't have one. See {@link #indexIn}.
+     */
+    private Object[] currentTable(Thread currentThread) {
+        if (directIndex != -1) {
+            return currentThread.directThreadLocals;
+        }
+        ThreadLocalMap map = mapFactory.getMap(currentThread);
+        return map == null ? null : map.table;
+    }
+
+    /**
+     * Returns the index of this variable's key in a table from {@link
+     * #currentTable}, or -1 if the key isn't there or the variable is
+     * {@link #UNSET}, so callers take their slow paths. Checks the home slot
+     * first, and otherwise probes the way the map's own lookups do, like
+     * {@link Handle} does.
+     */
+    private int indexIn(Thread currentThread, Object[] table) {
+        if (table == null) {
+            return -1;
+        }
+        if (directIndex != -1) {
+            return VolatileArray.get(table, directIndex) == reference
+                    ? directIndex : -1;
+        }
+        int index = reference.hash & (table.length - 1);
+        if (VolatileArray.get(table, index) != reference) {
+            index = mapFactory.getMap(currentThread).indexOf(reference);
+        }
+        return index != -1 && VolatileArray.get(table, index + 1) == UNSET
+                ? -1 : index;
+    }
+
+    /**
+     * Stores a value computed from the one at the given index. If
+     * computing it moved our entry, for example because the function
+     * used other thread locals and the map rehashed, falls back to
+     * {@link #set}.
+     */
+    private void storeComputed(Thread currentThread, Object[] table,
+            int index, T value) {
+        if (currentTable(currentThread) == table
+                && VolatileArray.get(table, index) == reference) {
+            VolatileArray.set(table, index + 1, value);
+        } else {
+            set(value);
+        }
+    }
+
+    /**
+     * Supplies values. See {@link ThreadLocal#withInitial}.
+     */
+    public interface Supplier<T> {
+
+        /** Returns a value. */
+        T get();
+    }
+
+    /**
+     * Computes a new value from an old one. See {@link #updateAndGet}.
+     */
+    public interface UnaryOperator<T> {
+
+        /** Returns the new value. */
+        T apply(T value);
+    }
+
+    /**
+     * Combines two values. See {@link #accumulateAndGet}.
+     */
+    public interface BinaryOperator<T> {
+
+        /** Returns the combined value. */
+        T apply(T left, T right);
+    }
+
+    /**
+     * Creates a thread local variable whose initial value in each thread
+     * comes from the given supplier. Use it instead of an anonymous
+     * subclass that overrides {@link #initialValue()}.
+     *
+     * <p>Every thread local from this method is an instance of the same
+     * final class, so the call to {@code initialValue()} on a thread's
+     * first access sees one receiver class, however many such thread
+     * locals there are, and the JIT can inline it. With one anonymous
+     * subclass per thread local, that call dispatches through the vtable
+     * instead. The supplier call behind it is virtual, though, so a first
+     * access costs about the same in both styles, and later accesses
+     * never call either. What this method saves is a subclass of
+     * ThreadLocal per variable. See {@code TLTest10}.
+     *
+     * @throws NullPointerException if supplier is null
+     */
+    public static <S> ThreadLocal<S> withInitial(
+            Supplier<? extends S> supplier) {
+        return new SuppliedThreadLocal<S>(supplier);
+    }
+
+    /**
+     * Thread local whose initial values come from a {@link Supplier}.
+     */
+    private static final class SuppliedThreadLocal<T> extends ThreadLocal<T> {
+
+        private final Supplier<? extends T> supplier;
+
+        SuppliedThreadLocal(Supplier<? extends T> supplier) {
+            if (supplier == null) {
+                throw new NullPointerException("supplier");
+            }
+            this.supplier = supplier;
+        }
+
+        @Override
+        protected T initialValue() {
+            return supplier.get();
+        }
+    }
+
+    /**
+     * Sets the value of this variable for the current thread. If set to
+     * null, the value will be set to null and the underlying entry will still
+     * be present.
+     */
+    public void set(T value) {
+        // Optimized for the fast path...
+        Thread currentThread = Thread.currentThread();
+        if (directIndex != -1) {
+            setDirect(currentThread, value);
+            return;
+        }
+        ThreadLocalMap map = currentThread.threadLocals;
+        if (map != null) {
+            ThreadLocalReference<T> reference = this.reference;
+            int index = reference.hash & map.mask;
+            Object[] table = map.table;
+            if (reference == VolatileArray.get(table, index)) {
+                // Replace existing entry.
+                VolatileArray.set(table, index + 1, value);
+                return;
+            }
+        }
+
+        setAfterMiss(currentThread, map, value);
+    }
+
+    /**
+     * Sets the value after not finding the entry in its home slot.
+     *
+     * @param map the current thread's map, or null if it doesn't have one
+     */
+    void setAfterMiss(Thread currentThread, ThreadLocalMap map, T value) {
+        if (map == null) {
+            map = mapFactory.newMap(currentThread, reference);
+            map.put(reference, value);
+        } else {
+            map.maybeRehash(reference).put(reference, value);
+        }
+    }
+
+    /**
+     * Removes the entry for this variable in the current thread. If this call
+     * is followed by a {@link #get()} before a {@link #set(Object)},
+     * {@code #get()} will call {@link #initialValue()} and create a new
+     * entry with the resulting value.
+     */
+    public void remove() {
+        Thread currentThread = Thread.currentThread();
+        if (directIndex != -1) {
+            Object[] entries = currentThread.directThreadLocals;
+            if (entries != null) {
+                VolatileArray.set2(entries, directIndex, null, null);
+            }
+            return;
+        }
+        remove(currentThread.threadLocals);
+    }
+
+    /**
+     * Gets the value from this thread local's direct slot. The slot holds
+     * our key along with the value, so that we never pick up a value left
+     * behind by a reclaimed thread local that had the same slot.
+     */
+    @SuppressWarnings("unchecked")
+    private T getDirect(Thread currentThread) {
+        Object[] entries = currentThread.directThreadLocals;
+        if (entries != null
+                && VolatileArray.get(entries, directIndex) == reference) {
+            return (T) VolatileArray.get(entries, directIndex + 1);
+        }
+
+        T value = initialValue();
+        setDirect(currentThread, value);
+        return value;
+    }
+
+    /**
+     * Sets the value in this thread local's direct slot.
+     */
+    private void setDirect(Thread currentThread, T value) {
+        Object[] entries = currentThread.directThreadLocals;
+        if (entries == null) {
+            entries = new Object[Flags.DIRECT_SLOTS << 1];
+            currentThread.directThreadLocals = entries;
+        }
+        VolatileArray.set2(entries, directIndex, reference, value);
+    }
+
+    /**
+     * Removes the entry for this variable from the given map.
+     *
+     * @param map the current thread's map, or null if it doesn't have one
+     */
+    void remove(ThreadLocalMap map) {
+        if (map != null) {
+            /*
+             * Ensure that this ThreadLocal doesn't get garbage collected
+             * during removal. If the ThreadLocal were to be reclaimed,
+             * the background thread could accidentally overwrite a subsequent
+             * value stored in the same slot.
+             */
+            map.pin = this;
+            if (!(map instanceof LinearProbingMap) || !((LinearProbingMap)
+                    map).removeFromHome(reference)) {
+                map.remove(reference);
+            }
+            map.pin = null;
+        }
+    }
+
+    /**
+     * Returns true if this thread local keeps its values in {@code
+     * Thread.threadLocals}, where the bulk operations work on them
+     * directly.
+     */
+    private boolean inThreadMap() {
+        return directIndex == -1 && mapFactory == MAP_FACTORY;
+    }
+
+    /**
+     * Gets the current thread's values of the given thread locals, like
+     * calling {@link #get()} on each one, and stores them in values. Reads
+     * the thread's map once for all of them. Doesn't call overrides of
+     * {@code get()} unless a thread local's entry is missing or out of
+     * place.
+     *
+     * @throws IllegalArgumentException if values is shorter than locals
+     */
+    public static void getAll(ThreadLocal<?>[] locals, Object[] values) {
+        if (values.length < locals.length) {
+            throw new IllegalArgumentException(
+                    "values.length < locals.length");
+        }
+
+        Thread currentThread = Thread.currentThread();
+        ThreadLocalMap map = currentThread.threadLocals;
+        for (int i = 0; i < locals.length; i++) {
+            ThreadLocal<?> local = locals[i];
+            if (map != null && local.inThreadMap()) {
+                ThreadLocalReference<?> reference = local.reference;
+                int index = reference.hash & map.mask;
+                Object[] table = map.table;
+                if (reference == VolatileArray.get(table, index)) {
+                    Object value = VolatileArray.get(table, index + 1);
+                    if (value != UNSET) {
+                        values[i] = value;
+                        continue;
+                    }
+                }
+            }
+
+            values[i] = local.get();
+
+            // get() may have created or replaced the map.
+            map = currentThread.threadLocals;
+        }
+    }
+
+    /**
+     * Sets the current thread's values of the given thread locals, like
+     * calling {@link #set(Object)} on each one with the value at the same
+     * index. Reads the thread's map once, and if some of the thread locals
+     * don't have entries yet, grows the map at most once to make room for
+     * all of them. Doesn't call overrides of {@code set()} for thread
+     * locals that keep their values in the thread's normal map.
+     *
+     * @throws IllegalArgumentException if values is shorter than locals
+     */
+    @SuppressWarnings("unchecked")
+    public static void setAll(ThreadLocal<?>[] locals, Object[] values) {
+        if (values.length < locals.length) {
+            throw new IllegalArgumentException(
+                    "values.length < locals.length");
+        }
+
+        Thread currentThread = Thread.currentThread();
+        ThreadLocalMap map = currentThread.threadLocals;
+
+        // Indices of the thread locals we didn't find in their home slots.
+        int[] misses = null;
+        int missCount = 0;
+        for (int i = 0; i < locals.length; i++) {
+            ThreadLocal<?> local = locals[i];
+            if (!local.inThreadMap()) {
+                ((ThreadLocal<Object>) local).set(values[i]);
+                continue;
+            }
+
+            if (map != null) {
+                ThreadLocalReference<?> reference = local.reference;
+                int index = reference.hash & map.mask;
+                Object[] table = map.table;
+                if (reference == VolatileArray.get(table, index)) {
+                    VolatileArray.set(table, index + 1, values[i]);
+                    continue;
+                }
+            }
+
+            if (misses == null) {
+                misses = new int[locals.length - i];
+            }
+            misses[missCount++] = i;
+        }
+
+        if (missCount == 0) {
+            return;
+        }
+
+        // Dense tables must cover each new index, so let set() grow them.
+        map = dense() ? null : ThreadLocalMap.makeRoom(MAP_FACTORY, missCount);
+
+        for (int j = 0; j < missCount; j++) {
+            int i = misses[j];
+            ThreadLocal<?> local = locals[i];
+            if (map == null) {
+                ((ThreadLocal<Object>) local).set(values[i]);
+            } else {
+                map.put(local.reference, values[i]);
+            }
+        }
+    }
+
+    /**
+     * Removes the current thread's values of the given thread locals, like
+     * calling {@link #remove()} on each one. Reads the thread's map once.
+     * Doesn't call overrides of {@code remove()} for thread locals that
+     * keep their values in the thread's normal map.
+     */
+    public static void removeAll(ThreadLocal<?>... locals) {
+        ThreadLocalMap map = Thread.currentThread().threadLocals;
+        for (ThreadLocal<?> local : locals) {
+            if (local.inThreadMap()) {
+                local.remove(map);
+            } else {
+                local.remove();
+            }
+        }
+    }
+
+    /**
+     * Makes sure the current thread can hold at least the given number of
+     * thread locals without growing its map. Threads that will use many
+     * thread locals can call this up front to skip the rehashes that
+     * would otherwise happen as the map fills up.
+     *
+     * @throws IllegalArgumentException if capacity is negative or more
+     *  than one map can hold
+     */
+    public static void reserveCapacity(int capacity) {
+        checkCapacity(capacity);
+        ThreadLocalMap.reserve(MAP_FACTORY, capacity);
+    }
+
+    /**
+     * Throws IllegalArgumentException if we can't reserve the given
+     * capacity.
+     */
+    private static void checkCapacity(int capacity) {
+        if (capacity < 0) {
+            throw new IllegalArgumentException("capacity < 0");
+        }
+        if (capacity > ThreadLocalMap.MAXIMUM_RESERVED_CAPACITY) {
+            throw new IllegalArgumentException("capacity > "
+                    + ThreadLocalMap.MAXIMUM_RESERVED_CAPACITY);
+        }
+    }
+
+    /**
+     * Returns a thread factory whose threads reserve capacity for the given
+     * number of thread locals, see {@link #reserveCapacity(int)}, and then
+     * call {@link #get()} on each of the given thread locals, so their
+     * initial values are ready before the thread runs its first task.
+     * Threads come from {@link Executors#defaultThreadFactory()}.
+     */
+    public static ThreadFactory threadFactory(int capacity,
+            ThreadLocal<?>... warmUp) {
+        return threadFactory(Executors.defaultThreadFactory(), capacity,
+                warmUp);
+    }
+
+    /**
+     * Same as {@link #threadFactory(int, ThreadLocal[])}, but gets threads
+     * from the given factory.
+     */
+    public static ThreadFactory threadFactory(ThreadFactory delegate,
+            int capacity, ThreadLocal<?>... warmUp) {
+        if (delegate == null) {
+            throw new NullPointerException("delegate");
+        }
+        checkCapacity(capacity);
+        return new PresizedThreadFactory(delegate, capacity, warmUp.clone());
+    }
+
+    /**
+     * See {@link ThreadLocal#threadFactory(ThreadFactory, int,
+     * ThreadLocal[])}.
+     */
+    private static class PresizedThreadFactory implements ThreadFactory {
+
+        private final ThreadFactory delegate;
+        private final int capacity;
+        private final ThreadLocal<?>[] warmUp;
+
+        PresizedThreadFactory(ThreadFactory delegate, int capacity,
+                ThreadLocal<?>[] warmUp) {
+            this.delegate = delegate;
+            this.capacity = capacity;
+            this.warmUp = warmUp;
+        }
+
+        public Thread newThread(final Runnable task) {
+            return delegate.newThread(new Runnable() {
+                public void run() {
+                    reserveCapacity(capacity);
+                    for (ThreadLocal<?> threadLocal : warmUp) {
+                        threadLocal.get();
+                    }
+                    task.run();
+                }
+            });
+        }
+    }
+
+    /**
+     * Returns a handle to the current thread's value of this variable. The
+     * handle finds the value once and then goes straight to it, so a loop
+     * that accesses this variable over and over can look it up outside of
+     * the loop. Only use the handle from the thread that created it.
+     */
+    public Handle<T> handle() {
+        return new Handle<T>(this, Thread.currentThread());
+    }
+
+    /**
+     * Accesses one thread's value of a {@link ThreadLocal} directly. Behaves
+     * just like calling the thread local's methods, but remembers where the
+     * value is. If the map moved the value, for example when it rehashed,
+     * the handle looks it up again. Only use a handle from the thread that
+     * created it.
+     */
+    public static final class Handle<T> {
+
+        private final ThreadLocal<T> threadLocal;
+        private final Thread thread;
+
+        /** Map we found the value in, or null for a direct slot. */
+        private ThreadLocalMap map;
+
+        /** Table we found the value in, or null if we haven't found it. */
+        private Object[] table;
+
+        /** Index of the key in table. */
+        private int index;
+
+        /**
+         * Map whose table didn't hold the key right after we set it, or
+         * null. A {@link SegmentedThreadLocalMap} keeps its entries in
+         * chunks, for example. We don't look in this map again.
+         */
+        private ThreadLocalMap untracked;
+
+        private Handle(ThreadLocal<T> threadLocal, Thread thread) {
+            this.threadLocal = threadLocal;
+            this.thread = thread;
+        }
+
+        /**
+         * Returns true if the key is still at index in the thread's
+         * current table.
+         */
+        private boolean isValid() {
+            Object[] table = this.table;
+            return table != null
+                    && VolatileArray.get(table, index)
+                    == threadLocal.reference
+                    && (map == null || isCurrent(map));
+        }
+
+        /**
+         * Returns true if the given map is still the thread's map. Reads
+         * the thread's fields directly instead of asking the factory.
+         */
+        private boolean isCurrent(ThreadLocalMap map) {
+            ThreadLocalMap.Factory factory = threadLocal.mapFactory;
+            if (factory == MAP_FACTORY) {
+                return map == thread.threadLocals;
+            }
+            if (factory == InheritableThreadLocal.MAP_FACTORY) {
+                return map == thread.inheritableThreadLocals;
+            }
+            return map == factory.getMap(thread);
+        }
+
+        /**
+         * Finds the key in the thread's current table. Leaves table null if
+         * the key isn't in the table, for example because the map keeps its
+         * entries elsewhere.
+         */
+        private void find() {
+            table = null;
+            ThreadLocalReference<T> reference = threadLocal.reference;
+            if (threadLocal.directIndex != -1) {
+                Object[] entries = thread.directThreadLocals;
+                if (entries != null && VolatileArray.get(entries,
+                        threadLocal.directIndex) == reference) {
+                    map = null;
+                    index = threadLocal.directIndex;
+                    table = entries;
+                }
+                return;
+            }
+
+            ThreadLocalMap map = threadLocal.mapFactory.getMap(thread);
+            if (map == null || map == untracked) {
+                return;
+            }
+
+            // We just got or set the value, so a map that has the key in
+            // its table has it there now. During an incremental rehash,
+            // that's the new table. The map only moves the entry again
+            // when it rehashes, and then we'll have a new map.
+            int index = map.indexOf(reference);
+            if (index == -1) {
+                untracked = map;
+                return;
+            }
+            this.map = map;
+            this.index = index;
+            this.table = map.table;
+        }
+
+        /**
+         * Returns the thread's value. See {@link ThreadLocal#get()}.
+         */
+        @SuppressWarnings("unchecked")
+        public T get() {
+            if (isValid()) {
+                Object value = VolatileArray.get(table, index + 1);
+                if (value != UNSET) {
+                    return (T) value;
+                }
+            }
+
+            T value = threadLocal.get();
+            find();
+            return value;
+        }
+
+        /**
+         * Sets the thread's value. See {@link ThreadLocal#set(Object)}.
+         */
+        public void set(T value) {
+            if (isValid()) {
+                VolatileArray.set(table, index + 1, value);
+                return;
+            }
+
+            threadLocal.set(value);
+            find();
+        }
+    }
+
+    /**
+     * Rebuilds the current thread's maps using the given strategy. The
+     * thread keeps using the strategy for new maps, and threads it creates
+     * inherit it.
+     */
+    static void useMapStrategy(ThreadLocalMap.Strategy strategy) {
+        ThreadLocalMap.useStrategy(MAP_FACTORY, strategy);
+        if (!unified()) {
+            ThreadLocalMap.useStrategy(InheritableThreadLocal.MAP_FACTORY,
+                    strategy);
+        }
+    }
+
+    /**
+     * Per-thread map of ThreadLocal instances to values. Keys and values
+     * alternate in the table. Subclasses decide where entries go, but
+     * {@link ThreadLocal#get()} only checks an entry's home slot
+     * (hash & mask) inline, so they should keep entries there when they can.
+     */
+    static abstract class ThreadLocalMap {
+
+        /** Capacity = 16 */
+        static final int INITIAL_LENGTH = 32;
+
+        /** We never shrink a map below this capacity. */
+        static final int MINIMUM_CAPACITY = INITIAL_LENGTH >> 1;
+
+        /** Largest array length we'll size a map to. */
+        static final int MAXIMUM_TABLE_LENGTH = 1 << 30;
+
+        /**
+         * Most entries {@link ThreadLocal#reserveCapacity} accepts. We keep
+         * maps no more than 1/3 full, so more wouldn't fit in the largest
+         * table.
+         */
+        static final int MAXIMUM_RESERVED_CAPACITY
+                = (MAXIMUM_TABLE_LENGTH - 1) / 3;
+
+        /**
+         * Returns the array length for the given thread's first map, which
+         * will hold the given reference. If we're learning lengths, the map
+         * starts out as big as most of the thread's siblings needed.
+         */
+        static int initialLength(Thread current,
+                ThreadLocalReference<?> reference) {
+            int length = Strategy.defaultStrategy().initialLength(reference);
+            if (learnLength()) {
+                length = Math.max(length,
+                        LengthHistory.learnedLength(current.getThreadGroup()));
+            }
+            return length;
+        }
+
+        /**
+         * Remembers how big the maps of recently exited threads in one
+         * thread group needed to be. We keep a histogram of the lengths,
+         * bucketed by powers of 2, and halve it now and then, so threads
+         * that exited long ago count for less. A new thread in the group
+         * starts out with a map that would have been big enough for 90% of
+         * the threads in the histogram.
+         */
+        static final class LengthHistory {
+
+            /** We halve the histogram after this many threads. */
+            static final int DECAY_INTERVAL = 64;
+
+            /**
+             * We never learn a length above this, so one thread that needed
+             * a huge map can't bloat all of its siblings.
+             */
+            static final int MAXIMUM_LENGTH = 1 << 12;
+
+            /** Histories by thread group. Guarded by itself. */
+            private static final Map<ThreadGroup, LengthHistory> histories
+                    = new WeakHashMap<ThreadGroup, LengthHistory>();
+
+            /**
+             * Returns the length learned for the given thread group, or 0
+             * if we haven't learned one yet.
+             */
+            static int learnedLength(ThreadGroup group) {
+                if (group == null) {
+                    return 0;
+                }
+                LengthHistory history;
+                synchronized (histories) {
+                    history = histories.get(group);
+                }
+                return history == null ? 0 : history.length;
+            }
+
+            /**
+             * Records the length the given map needed in a thread from the
+             * given thread group.
+             */
+            static void record(ThreadGroup group, ThreadLocalMap map) {
+                map.settle();
+                int entries = 0;
+                for (Object[] table : map.tables()) {
+                    for (int i = table.length - 2; i >= 0; i -= 2) {
+                        if (VolatileArray.get(table, i)
+                                instanceof ThreadLocalReference<?>) {
+                            entries++;
+                        }
+                    }
+                }
+
+                LengthHistory history;
+                synchronized (histories) {
+                    history = histories.get(group);
+                    if (history == null) {
+                        history = new LengthHistory();
+                        histories.put(group, history);
+                    }
+                }
+                history.record(lengthFor(entries, 0));
+            }
+
+            /** Numbers of threads by log2 of their map lengths. */
+            private final int[] counts = new int[32];
+
+            /** Number of threads in the histogram. */
+            private int threads;
+
+            /** Length learned from the histogram. */
+            volatile int length;
+
+            /**
+             * Adds a thread whose map needed the given length, a power of 2.
+             */
+            synchronized void record(int length) {
+                counts[Integer.numberOfTrailingZeros(
+                        Math.min(length, MAXIMUM_LENGTH))]++;
+                if (++threads == DECAY_INTERVAL) {
+                    threads = 0;
+                    for (int i = 0; i < counts.length; i++) {
+                        threads += counts[i] >>= 1;
+                    }
+                }
+
+                // Find the smallest length that covers 90% of the threads.
+                int covered = threads - threads / 10;
+                int sum = 0;
+                for (int i = 0; i < counts.length; i++) {
+                    sum += counts[i];
+                    if (sum >= covered) {
+                        this.length = 1 << i;
+                        return;
+                    }
+                }
+            }
+        }
+
+        /**
+         * Looks up and creates ThreadLocalMaps.
+         */
+        static abstract class Factory {
+
+            /**
+             * Creates a new map for the given thread with the default array
+             * length for the given first reference.
+             */
+            ThreadLocalMap newMap(Thread current,
+                    ThreadLocalReference<?> first) {
+                return newMap(current, initialLength(current, first));
+            }
+
+            /**
+             * Creates a new map for the given thread with the given array
+             * length.
+             */
+            abstract ThreadLocalMap newMap(Thread current, int length);
+
+            /**
+             * Gets the map for the given thread.
+             */
+            abstract ThreadLocalMap getMap(Thread current);
+        }
+
+        /**
+         * Decides which kind of map to build each time a thread needs a new
+         * map. A map remembers the strategy that built it, and the map that
+         * replaces it comes from the same strategy, so a thread sticks with
+         * its strategy until {@link ThreadLocal#useMapStrategy} changes it.
+         * New threads use {@link #defaultStrategy()}, and child threads use
+         * their parent's strategy.
+         *
+         * <p>Map implementations must live in this package, so strategies
+         * do, too. Select one with {@code
+         * -Djava.lang.ThreadLocal.strategy=}{@code linearProbing},
+         * {@code robinHood}, {@code adaptive} or the name of a Strategy
+         * subclass with a no-argument constructor. Without the property,
+         * the {@link #CONFIGURED} strategy builds maps according to the
+         * other system properties.
+         */
+        static abstract class Strategy {
+
+            /**
+             * Creates an empty map. Doesn't install the map.
+             *
+             * @param length minimum array length, a power of 2
+             * @param previous map the new map will replace, or null
+             */
+            abstract ThreadLocalMap newMap(Factory factory, int length,
+                    ThreadLocalMap previous);
+
+            /**
+             * Returns the array length for a thread's first map, which will
+             * hold the given reference. In dense mode, the table must cover
+             * the reference's index.
+             */
+            int initialLength(ThreadLocalReference<?> first) {
+                int length = INITIAL_LENGTH;
+                if (dense()) {
+                    while (length <= first.hash) {
+                        length <<= 1;
+                    }
+                }
+                return length;
+            }
+
+            /** Always uses {@link LinearProbingMap}. */
+            static final Strategy LINEAR_PROBING = new Strategy() {
+                ThreadLocalMap newMap(Factory factory, int length,
+                        ThreadLocalMap previous) {
+                    return new LinearProbingMap(factory,
+                            Math.max(length, INITIAL_LENGTH));
+                }
+            };
+
+            /**
+             * Always uses {@link RobinHoodThreadLocalMap}. See {@link
+             * Flags#ROBIN_HOOD} for when reclaimed values go away.
+             */
+            static final Strategy ROBIN_HOOD = new Strategy() {
+                ThreadLocalMap newMap(Factory factory, int length,
+                        ThreadLocalMap previous) {
+                    return new RobinHoodThreadLocalMap(factory,
+                            Math.max(length, INITIAL_LENGTH));
+                }
+            };
+
+            /**
+             * Builds maps according to the {@code dense}, {@code robinHood},
+             * {@code segmented} and {@code tiny} system properties.
+             */
+            static final Strategy CONFIGURED = new Strategy() {
+                ThreadLocalMap newMap(Factory factory, int length,
+                        ThreadLocalMap previous) {
+                    if (tiny() && length <= TinyThreadLocalMap.LENGTH) {
+                        return new TinyThreadLocalMap(factory);
+                    }
+                    if (segmented() && length
+                            >= SegmentedThreadLocalMap.MINIMUM_LENGTH) {
+                        return new SegmentedThreadLocalMap(factory, length);
+                    }
+                    length = Math.max(length, INITIAL_LENGTH);
+                    if (robinHood()) {
+                        return new RobinHoodThreadLocalMap(factory, length);
+                    }
+                    return new LinearProbingMap(factory, length);
+                }
+
+                @Override
+                int initialLength(ThreadLocalReference<?> first) {
+                    // A tiny map searches every slot anyway.
+                    return tiny() ? TinyThreadLocalMap.LENGTH
+                            : super.initialLength(first);
+                }
+            };
+
+            /**
+             * Picks a map based on how the thread uses it. A thread starts
+             * out with a tiny map. When the map needs rebuilding, we look
+             * at how big it needs to be and why it's being rebuilt:
+             *
+             * <ul>
+             *   <li>Very large maps are segmented.</li>
+             *   <li>If tombstones filled up a linear probing map, the thread
+             *     churns through thread locals. See {@link
+             *     LinearProbingMap#churned}. We switch to Robin Hood
+             *     hashing, which doesn't leave tombstones, and stick with
+             *     it. Such a thread keeps modifying its map, so it removes
+             *     reclaimed entries promptly. Shrinking a sparse map or
+             *     rebuilding one to reserve room doesn't count.</li>
+             *   <li>Otherwise, we use linear probing, which has the
+             *     cheapest lookups.</li>
+             * </ul>
+             */
+            static final Strategy ADAPTIVE = new Strategy() {
+                ThreadLocalMap newMap(Factory factory, int length,
+                        ThreadLocalMap previous) {
+                    if (length <= TinyThreadLocalMap.LENGTH) {
+                        return new TinyThreadLocalMap(factory);
+                    }
+                    if (length >= SegmentedThreadLocalMap.MINIMUM_LENGTH) {
+                        return new SegmentedThreadLocalMap(factory, length);
+                    }
+                    length = Math.max(length, INITIAL_LENGTH);
+                    if (previous instanceof RobinHoodThreadLocalMap
+                            || (previous instanceof LinearProbingMap
+                            && ((LinearProbingMap) previous).churned)) {
+                        return new RobinHoodThreadLocalMap(factory, length);
+                    }
+                    return new LinearProbingMap(factory, length);
+                }
+
+                @Override
+                int initialLength(ThreadLocalReference<?> first) {
+                    return TinyThreadLocalMap.LENGTH;
+                }
+            };
+
+            /**
+             * Builds maps for threads that start before the VM has booted,
+             * the same way {@link #CONFIGURED} does. We don't know the
+             * configured strategy yet, so {@link #create} switches these
+             * maps over to it the next time they're rebuilt.
+             */
+            static final Strategy BOOTING = new Strategy() {
+                ThreadLocalMap newMap(Factory factory, int length,
+                        ThreadLocalMap previous) {
+                    return CONFIGURED.newMap(factory, length, previous);
+                }
+
+                @Override
+                int initialLength(ThreadLocalReference<?> first) {
+                    return CONFIGURED.initialLength(first);
+                }
+            };
+
+            /**
+             * Returns the strategy for new threads. See {@link
+             * Flags#STRATEGY}.
+             */
+            static Strategy defaultStrategy() {
+                return VM.isBooted() ? Flags.STRATEGY : BOOTING;
+            }
+
+            /**
+             * Looks up a strategy by name: {@code linearProbing}, {@code
+             * robinHood}, {@code adaptive} or the name of a Strategy
+             * subclass with a no-arg constructor. We load the class with
+             * the bootstrap class loader, so it has to be on the boot class
+             * path, in java.lang like this class. Quietly falls back to
+             * {@link #CONFIGURED} if we can't find or create the strategy,
+             * since we may be initializing {@link Flags} in the middle of
+             * some thread's first get() or set().
+             */
+            static Strategy forName(String name) {
+                if (name == null) {
+                    return CONFIGURED;
+                }
+                if (name.equals("linearProbing")) {
+                    return LINEAR_PROBING;
+                }
+                if (name.equals("robinHood")) {
+                    return ROBIN_HOOD;
+                }
+                if (name.equals("adaptive")) {
+                    return ADAPTIVE;
+                }
+                try {
+                    return (Strategy) Class.forName(name).newInstance();
+                } catch (Exception e) {
+                    return CONFIGURED;
+                }
+            }
+        }
+
+        /**
+         * Creates an empty map using the same strategy as the map it
+         * replaces. Doesn't install the map.
+         *
+         * @param previous map the new map will replace, or null if the
+         *  thread doesn't have one yet
+         */
+        static ThreadLocalMap create(Factory factory, int length,
+                ThreadLocalMap previous) {
+            return create(factory, length, previous == null
+                    ? Strategy.defaultStrategy() : previous.strategy, previous);
+        }
+
+        /**
+         * Creates an empty map using the given strategy. Doesn't install
+         * the map.
+         */
+        static ThreadLocalMap create(Factory factory, int length,
+                Strategy strategy, ThreadLocalMap previous) {
+            if (strategy == Strategy.BOOTING) {
+                strategy = Strategy.defaultStrategy();
+            }
+            ThreadLocalMap map = strategy.newMap(factory, length, previous);
+            map.strategy = strategy;
+            return map;
+        }
+
+        /**
+         * Switches the current thread's map for the given factory over to
+         * the given strategy, and rebuilds the map right away.
+         */
+        static void useStrategy(Factory factory, Strategy strategy) {
+            Thread current = Thread.currentThread();
+            ThreadLocalMap map = factory.getMap(current);
+            if (map == null) {
+                // Rebuild an empty map, so the thread remembers the strategy.
+                map = factory.newMap(current, INITIAL_LENGTH);
+            }
+            rebuild(factory, map, strategy, 0, 0);
+        }
+
+        /**
+         * Makes sure the current thread's map for the given factory can
+         * hold the given number of entries without growing.
+         */
+        static void reserve(Factory factory, int entries) {
+            Thread current = Thread.currentThread();
+            ThreadLocalMap map = factory.getMap(current);
+            if (map == null) {
+                factory.newMap(current, lengthFor(entries, 0));
+            } else if (!map.hasRoomFor(entries)) {
+                rebuild(factory, map, map.strategy, entries, 0);
+            }
+        }
+
+        /**
+         * Returns the current thread's map for the given factory, after
+         * making sure it can take the given number of new entries without
+         * rehashing. Creates or rebuilds the map at most once.
+         */
+        static ThreadLocalMap makeRoom(Factory factory, int entries) {
+            Thread current = Thread.currentThread();
+            ThreadLocalMap map = factory.getMap(current);
+            if (map == null) {
+                return factory.newMap(current, lengthFor(entries, 0));
+            }
+            if (map.canAdd(entries)) {
+                return map;
+            }
+            rebuild(factory, map, map.strategy, 0, entries);
+            return factory.getMap(current);
+        }
+
+        /**
+         * Returns the array length of a map that's no more than 1/3 full
+         * with the given number of entries. In dense mode, the table must
+         * also cover the given hash. Never exceeds {@link
+         * #MAXIMUM_TABLE_LENGTH}.
+         */
+        private static int lengthFor(int entries, int maximumHash) {
+            // Multiply as longs, so large counts can't overflow.
+            long minimumLength = Math.max((long) entries * 3,
+                    dense() ? maximumHash : 0);
+            int length = TinyThreadLocalMap.LENGTH;
+            while (length <= minimumLength && length < MAXIMUM_TABLE_LENGTH) {
+                length <<= 1;
+            }
+            return length;
+        }
 
         /**
-         * Factory to use for creating new ThreadLocalMaps when rehashing.
+         * Replaces the current thread's map with one from the given strategy
+         * that has room for its live entries plus newEntries, or for
+         * minimumEntries, whichever is more.
+         */
+        private static void rebuild(Factory factory, ThreadLocalMap map,
+                Strategy strategy, int minimumEntries, int newEntries) {
+            Thread current = Thread.currentThread();
+
+            map.settle();
+            Object[][] tables = map.tables();
+            int liveEntries = 0;
+            int maximumHash = 0;
+            for (Object[] table : tables) {
+                for (int i = table.length - 2; i >= 0; i -= 2) {
+                    Object k = VolatileArray.get(table, i);
+                    if (k instanceof ThreadLocalReference<?>) {
+                        liveEntries++;
+                        maximumHash = Math.max(maximumHash,
+                                ((ThreadLocalReference<?>) k).hash);
+                    }
+                }
+            }
+
+            int length = lengthFor(
+                    Math.max(liveEntries + newEntries, minimumEntries),
+                    maximumHash);
+
+            // Install the new map before we copy entries, just like a rehash.
+            map.strategy = strategy;
+            ThreadLocalMap newMap = factory.newMap(current, length);
+            for (Object[] table : tables) {
+                for (int i = table.length - 2; i >= 0; i -= 2) {
+                    Object k = VolatileArray.get(table, i);
+                    if (!(k instanceof ThreadLocalReference<?>)) {
+                        continue;
+                    }
+
+                    ThreadLocalReference<?> reference
+                            = (ThreadLocalReference<?>) k;
+                    ThreadLocal<?> threadLocal = reference.get();
+                    if (threadLocal != null) {
+                        map.pin = threadLocal;
+                        newMap.put(reference, VolatileArray.get(table, i + 1));
+                        map.pin = null;
+                    }
+                }
+            }
+            map.retire();
+        }
+
+        /**
+         * Holds empty tables that exited threads left behind, a limited
+         * number of each length. Only tables that no other thread can
+         * reach go in the pool. See {@link ThreadLocal#threadExiting}.
          */
-        private final Factory factory;
+        static final class TablePool {
+
+            /** We don't pool tables longer than this. */
+            static final int MAXIMUM_LENGTH = 1 << 12;
+
+            /** Maximum number of tables we pool of each length. */
+            static final int TABLES_PER_LENGTH = 32;
+
+            /** Pooled tables of one length. */
+            private static class Bucket {
+                final Object[][] tables = new Object[TABLES_PER_LENGTH][];
+                int size;
+            }
+
+            /** Buckets by log2 of the table length. */
+            private static final Bucket[] buckets = new Bucket[
+                    Integer.numberOfTrailingZeros(MAXIMUM_LENGTH) + 1];
+
+            static {
+                for (int i = 0; i < buckets.length; i++) {
+                    buckets[i] = new Bucket();
+                }
+            }
+
+            /**
+             * Returns an empty table with the given length, a power of 2.
+             */
+            static Object[] take(int length) {
+                if (length <= MAXIMUM_LENGTH) {
+                    Bucket bucket
+                            = buckets[Integer.numberOfTrailingZeros(length)];
+                    synchronized (bucket) {
+                        if (bucket.size > 0) {
+                            Object[] table = bucket.tables[--bucket.size];
+                            bucket.tables[bucket.size] = null;
+                            return table;
+                        }
+                    }
+                }
+                return new Object[length];
+            }
+
+            /**
+             * Clears the given table and adds it to the pool if there's
+             * room. No other thread may be able to reach the table.
+             */
+            static void release(Object[] table) {
+                int length = table.length;
+                if (length > MAXIMUM_LENGTH
+                        || Integer.bitCount(length) != 1) {
+                    return;
+                }
+
+                // Clear it now, so we don't hold onto the values.
+                Arrays.fill(table, null);
+                Bucket bucket = buckets[Integer.numberOfTrailingZeros(length)];
+                synchronized (bucket) {
+                    if (bucket.size < TABLES_PER_LENGTH) {
+                        bucket.tables[bucket.size++] = table;
+                    }
+                }
+            }
+
+            /**
+             * Releases the tables of a map that belonged to an exited
+             * thread.
+             */
+            static void release(ThreadLocalMap map) {
+                map.settle();
+                for (Object[] table : map.tables()) {
+                    release(table);
+                }
+            }
+        }
+
+        /** Used to turn hashes into indices. */
+        final int mask;
 
         /** Entry table. Alternating keys and values. */
         final Object[] table;
 
+        /**
+         * Factory to use for creating new ThreadLocalMaps when rehashing.
+         */
+        final Factory factory;
+
+        /**
+         * Strategy that built this map, and that builds the map that
+         * replaces it. Only accessed from the owning thread.
+         */
+        Strategy strategy = Strategy.defaultStrategy();
+
         /**
          * Used to prevent garbage collection of a ThreadLocal instance.
          */
         @SuppressWarnings("UnusedDeclaration")
-        private volatile ThreadLocal<?> pin;
+        volatile ThreadLocal<?> pin;
 
         /**
          * Constructs an empty map with the given array length.
@@ -283,10 +2071,297 @@ public class ThreadLocal<T> {
          *  2X capacity
          */
         ThreadLocalMap(Factory factory, int length) {
-            this.table = new Object[length];
-
+            this.table = recycleTables()
+                    ? TablePool.take(length) : new Object[length];
             this.factory = factory;
             this.mask = length - 1;
+        }
+
+        /**
+         * Returns maximum number of entries map can hold.
+         */
+        final int capacity() {
+            return table.length >> 1;
+        }
+
+        /**
+         * We move one in this many entries that we find outside of their
+         * home slots into their home slots. Must be a power of 2.
+         */
+        static final int RELOCATION_INTERVAL = 64;
+
+        /**
+         * Number of lookups that found their entry outside of its home
+         * slot. Only accessed from the owning thread.
+         */
+        private int offHomeHits;
+
+        /**
+         * Called when a lookup finds an entry outside of its home slot. Now
+         * and then, moves the entry into its home slot, so that
+         * {@link ThreadLocal#get()} finds it inline from then on. The more
+         * often a thread local misses, the sooner it gets picked, so the
+         * hottest thread locals end up in their home slots. Whatever was in
+         * the home slot takes the entry's old slot.
+         *
+         * <p>Only for maps that find an entry in the other's slot whenever
+         * they find it in its own. With linear probing, the entry in the
+         * home slot lies on the probe path to the moved entry's old slot,
+         * and nothing between them is null, so we can still find it there.
+         *
+         * @param index where we found the entry
+         */
+        final void offHomeHit(ThreadLocal<?> key, int index) {
+            if ((++offHomeHits & (RELOCATION_INTERVAL - 1)) != 0) {
+                return;
+            }
+
+            Object[] table = this.table;
+            ThreadLocalReference<?> reference = key.reference;
+            int home = reference.hash & mask;
+            Object k = VolatileArray.get(table, home);
+            ThreadLocal<?> other = null;
+            if (k instanceof ThreadLocalReference<?>) {
+                other = ((ThreadLocalReference<?>) k).get();
+                if (other == null) {
+                    // The Cleaner may be removing this entry right now.
+                    return;
+                }
+            }
+
+            /*
+             * Ensure that neither thread local gets garbage collected while
+             * we move it. Otherwise, the Cleaner could look for an entry
+             * while it's in neither slot, and we'd leak the value until the
+             * next rehash. We pin the entry in the home slot, and reading
+             * key after the moves keeps key reachable until then.
+             */
+            pin = other;
+            Object value = VolatileArray.get(table, index + 1);
+            Object otherValue = VolatileArray.get(table, home + 1);
+            VolatileArray.set2(table, home, reference, value);
+            VolatileArray.set2(table, index, k, otherValue);
+            pin = key;
+            pin = null;
+        }
+
+        /**
+         * Returns true if less than 1/8 of this map holds live entries and
+         * the map is big enough to shrink.
+         */
+        final boolean isSparse(int liveEntries) {
+            int capacity = capacity();
+            return liveEntries < (capacity >> 3)
+                    && capacity > MINIMUM_CAPACITY;
+        }
+
+        /**
+         * Returns the capacity to shrink this map to. Counts the live
+         * entries instead of trusting the map's own bookkeeping, and leaves
+         * the new map at least 1/4 full, so it can take a burst of
+         * insertions before it has to grow again. In dense mode, the new
+         * table still covers every live index.
+         *
+         * @param minimumLength minimum array length of the new map
+         */
+        final int shrunkCapacity(int minimumLength) {
+            int liveEntries = 0;
+            int maximumHash = 0;
+            Object[] table = this.table;
+            for (int i = table.length - 2; i >= 0; i -= 2) {
+                Object k = VolatileArray.get(table, i);
+                if (k instanceof ThreadLocalReference<?>) {
+                    ThreadLocalReference<?> reference
+                            = (ThreadLocalReference<?>) k;
+                    if (reference.get() != null) {
+                        liveEntries++;
+                        maximumHash = Math.max(maximumHash, reference.hash);
+                    }
+                }
+            }
+
+            int capacity = capacity();
+            while (capacity > MINIMUM_CAPACITY
+                    && liveEntries < (capacity >> 2)) {
+                capacity >>= 1;
+            }
+
+            if (dense()) {
+                minimumLength = Math.max(minimumLength, maximumHash + 2);
+            }
+            while ((capacity << 1) < minimumLength) {
+                capacity <<= 1;
+            }
+
+            return capacity;
+        }
+
+        /**
+         * Rehashes the map if necessary before inserting the given
+         * reference. In dense mode, this also grows the table until it
+         * covers the reference's index.
+         *
+         * @return latest map
+         */
+        abstract ThreadLocalMap maybeRehash(
+                ThreadLocalReference<?> reference);
+
+        /**
+         * Sets entry for ThreadLocal to value in the given table, creating an
+         * entry if necessary. Assumes this map has adequate capacity.
+         */
+        abstract void put(ThreadLocalReference<?> reference, Object value);
+
+        /**
+         * Gets value for given ThreadLocal after not finding it in the first
+         * slot.
+         */
+        abstract Object getAfterMiss(ThreadLocal<?> key);
+
+        /**
+         * Gets the value for the given reference, or {@link #ABSENT} if
+         * this map doesn't have an entry for it. Unlike {@link
+         * #getAfterMiss}, never adds an entry. Called from the owning
+         * thread.
+         */
+        abstract Object lookup(ThreadLocalReference<?> reference);
+
+        /**
+         * Removes entry for the given ThreadLocal. Called from the owning
+         * thread.
+         */
+        abstract void remove(ThreadLocalReference<?> key);
+
+        /**
+         * Removes the entry for a reclaimed ThreadLocal, if there is one.
+         * Called from the Cleaner thread, concurrently with the owning
+         * thread.
+         */
+        abstract void expunge(ThreadLocalReference<?> key);
+
+        /**
+         * Finishes any work this map has put off, so that the table holds
+         * every entry. Called from the owning thread before we copy the
+         * table directly.
+         */
+        void settle() {}
+
+        /**
+         * Lets go of anything this map holds onto for the Cleaner, once
+         * the map's thread no longer uses it. Called after another map
+         * replaced this one or the thread exited, from the owning thread
+         * or the Cleaner.
+         */
+        void retire() {}
+
+        /**
+         * Returns true if this map can take the given number of entries
+         * without growing. Approximate. Assumes the map is no more than 1/3
+         * full.
+         */
+        boolean hasRoomFor(int entries) {
+            return table.length > (long) entries * 3;
+        }
+
+        /**
+         * Returns true if we can {@link #put} the given number of new
+         * entries into this map without calling {@link #maybeRehash}
+         * first.
+         */
+        abstract boolean canAdd(int entries);
+
+        /**
+         * Finds the given reference in {@link #table}.
+         *
+         * @return index of the key, or -1 if the table doesn't contain it,
+         *  which is always the case for maps that keep their entries
+         *  somewhere else
+         */
+        int indexOf(ThreadLocalReference<?> reference) {
+            return -1;
+        }
+
+        /**
+         * Returns the tables that hold this map's entries, for copying. Most
+         * maps have just the one.
+         */
+        Object[][] tables() {
+            return new Object[][] { table };
+        }
+    }
+
+    /**
+     * Map that uses linear probing. Removing an entry leaves a tombstone in
+     * its key slot, unless the slot after it is empty. The Cleaner removes
+     * entries directly from the table.
+     */
+    static class LinearProbingMap extends ThreadLocalMap {
+
+        /** Total number of live and dead entries. */
+        private int load;
+
+        /** Maximum number of entries before we must rebuild the map. */
+        private final int maximumLoad;
+
+        /**
+         * Number of tombstones in this map. This value is not exact.
+         * We decide whether or not to rehash based upon the load (which
+         * is exact). This rough tombstone count just enables us to estimate
+         * the number of live entries so we can decide whether or not to expand
+         * the entry array.
+         */
+        private final AtomicInteger tombstones;
+
+        /**
+         * Set when tombstones filled up this map and we rebuilt it without
+         * growing it, which means the thread churns through thread locals.
+         * Tells {@link Strategy#ADAPTIVE} why we're rebuilding. Only
+         * accessed from the owning thread.
+         */
+        boolean churned;
+
+        /**
+         * Set when most of the entries in this map are tombstones, by either
+         * the owning thread or the Cleaner. Only the owning thread can
+         * replace its map, so it shrinks the map the next time it inserts an
+         * entry.
+         */
+        private volatile boolean shrink;
+
+        /** Old capacity at which we start to grow maps incrementally. */
+        static final int INCREMENTAL_CAPACITY = 4096;
+
+        /** Maximum number of entries we migrate per operation. */
+        private static final int MIGRATION_STEP = 16;
+
+        /**
+         * Map we're still moving entries out of, or null. Written by the
+         * owning thread. Read by the Cleaner, which removes reclaimed
+         * entries from both maps.
+         */
+        private volatile LinearProbingMap previous;
+
+        /**
+         * Index of the slot after the next one we'll migrate from the
+         * previous map. We migrate from the end down to 0.
+         */
+        private int migrationIndex;
+
+        /**
+         * Upper bound on the number of entries we may still migrate. We
+         * must finish migrating before load + remaining reaches the maximum
+         * load, or else we could run out of null slots.
+         */
+        private int remaining;
+
+        /**
+         * Constructs an empty map with the given array length.
+         *
+         * @param length of the underlying array, must be power of 2,
+         *  2X capacity
+         */
+        LinearProbingMap(Factory factory, int length) {
+            super(factory, length);
             this.load = 0;
             this.maximumLoad = length / 3; // 2/3 capacity
             this.tombstones = new AtomicInteger(0);
@@ -301,25 +2376,46 @@ public class ThreadLocal<T> {
         }
 
         /**
-         * Returns maximum number of entries map can hold.
-         */
-        private int capacity() {
-            return table.length >> 1;
-        }
-        
-        /**
-         * Rehashes the map if necessary. Expands the underlying array if
-         * necessary. Gets rid of tombstones. We must rehash every time we fill
-         * a null slot; we depend on the presence of null slots to end searches
-         * (otherwise, we'll infinitely loop).
+         * Rehashes the map if necessary. Expands or shrinks the underlying
+         * array if necessary. Gets rid of tombstones. We must rehash every
+         * time we fill a null slot; we depend on the presence of null slots
+         * to end searches (otherwise, we'll infinitely loop).
          *
          * @return latest map
          */
         private ThreadLocalMap maybeRehash() {
-            if (load < maximumLoad) {
+            if (previous != null) {
+                migrate(MIGRATION_STEP);
+                if (load + remaining >= maximumLoad) {
+                    settle();
+                }
+            }
+
+            if (load < maximumLoad && !shrink) {
                 return this;
             }
 
+            return rehash(0);
+        }
+
+        ThreadLocalMap maybeRehash(ThreadLocalReference<?> reference) {
+            if (dense() && reference.hash > mask) {
+                return rehash(reference.hash + 2);
+            }
+
+            return maybeRehash();
+        }
+
+        /**
+         * Moves the live entries into a new map.
+         *
+         * @param minimumLength minimum array length of the new map
+         * @return new map
+         */
+        private ThreadLocalMap rehash(int minimumLength) {
+            // Only one migration at a time.
+            settle();
+
             int oldCapacity = capacity();
 
             // Default to the same capacity. This will create a table of the
@@ -335,12 +2431,28 @@ public class ThreadLocal<T> {
                 // More than 1/2 filled w/ live entries.
                 // Double size.
                 newCapacity = oldCapacity << 1;
+            } else if (isSparse(liveEntries)) {
+                // Less than 1/8 filled w/ live entries. Shrink.
+                newCapacity = shrunkCapacity(minimumLength);
             }
 
+            while ((newCapacity << 1) < minimumLength) {
+                newCapacity <<= 1;
+            }
+
+            churned = newCapacity == oldCapacity && load >= maximumLoad;
+
             // Create new map.
             ThreadLocalMap newMap = factory.newMap(Thread.currentThread(),
                     newCapacity << 1);
 
+            if (incrementalRehash() && newCapacity > oldCapacity
+                    && oldCapacity >= INCREMENTAL_CAPACITY
+                    && newMap instanceof LinearProbingMap) {
+                ((LinearProbingMap) newMap).migrateFrom(this);
+                return newMap;
+            }
+
             // Move over entries.
             for (int i = table.length - 2; i >= 0; i -= 2) {
                 Object k = VolatileArray.get(table, i);
@@ -357,30 +2469,120 @@ public class ThreadLocal<T> {
                 ThreadLocalReference<?> reference
                         = (ThreadLocalReference<?>) k;
                 ThreadLocal<?> threadLocal = reference.get();
-                if (threadLocal != null) {
-                    /*
-                     * Entry is still alive. Move it over.
-                     * 
-                     * Ensure that threadLocal doesn't get garbage collected
-                     * during put(). If it were to get reclaimed after the
-                     * null check, the cleanup thread could try to remove the
-                     * entry before we actually insert it, and we'd end up
-                     * leaking the value (until the next
-                     * rehash).  
-                     */
+                if (threadLocal != null) {
+                    /*
+                     * Entry is still alive. Move it over.
+                     * 
+                     * Ensure that threadLocal doesn't get garbage collected
+                     * during put(). If it were to get reclaimed after the
+                     * null check, the cleanup thread could try to remove the
+                     * entry before we actually insert it, and we'd end up
+                     * leaking the value (until the next
+                     * rehash).  
+                     */
+                    pin = threadLocal;
+                    newMap.put(reference, VolatileArray.get(table, i + 1));
+                    pin = null;
+                }
+            }
+
+            return newMap;
+        }
+
+        /**
+         * Starts moving entries over from the given map. Until we're done,
+         * every operation that can't be satisfied from this map's home slot
+         * moves a few more entries, and lookups that miss here check the
+         * previous map. No single operation pays for the whole copy.
+         *
+         * <p>The previous map may hold stale copies of entries we've
+         * already set or moved, so we only move entries that aren't here
+         * yet, and we remove entries from both maps.
+         */
+        void migrateFrom(LinearProbingMap previous) {
+            this.migrationIndex = previous.table.length;
+            this.remaining = previous.load;
+            this.previous = previous;
+        }
+
+        /**
+         * Moves up to the given number of entries over from the previous
+         * map.
+         */
+        private void migrate(int entries) {
+            LinearProbingMap previous = this.previous;
+            if (previous == null) {
+                return;
+            }
+
+            Object[] oldTable = previous.table;
+            int i = migrationIndex;
+            int stop = Math.max(i - (entries << 1), 0);
+            while (i > stop) {
+                i -= 2;
+                Object k = VolatileArray.get(oldTable, i);
+                if (k == null) {
+                    continue;
+                }
+
+                remaining--;
+                if (k == TOMBSTONE) {
+                    continue;
+                }
+
+                @SuppressWarnings("unchecked")
+                ThreadLocalReference<?> reference
+                        = (ThreadLocalReference<?>) k;
+                ThreadLocal<?> threadLocal = reference.get();
+                if (threadLocal != null && indexOf(reference) == -1) {
+                    // Same as rehash(). Keep the Cleaner away while we move
+                    // this entry.
                     pin = threadLocal;
-                    newMap.put(reference, VolatileArray.get(table, i + 1));
+                    put(reference, VolatileArray.get(oldTable, i + 1));
                     pin = null;
                 }
             }
 
-            return newMap;
+            migrationIndex = i;
+            if (i == 0) {
+                remaining = 0;
+                this.previous = null;
+            }
+        }
+
+        void settle() {
+            migrate(migrationIndex >> 1);
+        }
+
+        boolean canAdd(int entries) {
+            return previous == null && !shrink
+                    && load + entries <= maximumLoad;
         }
 
         /**
-         * Sets entry for ThreadLocal to value in the given table, creating an
-         * entry if necessary. Assumes this map has adequate capacity.
+         * Returns true if we can fill another null slot without rehashing.
+         */
+        boolean hasRoom() {
+            return load < maximumLoad;
+        }
+
+        /**
+         * Finds the given reference.
+         *
+         * @return index of the key, or -1 if the map doesn't contain it
          */
+        int indexOf(ThreadLocalReference<?> reference) {
+            for (int index = reference.hash & mask;; index = next(index)) {
+                Object k = VolatileArray.get(table, index);
+                if (k == reference) {
+                    return index;
+                }
+                if (k == null) {
+                    return -1;
+                }
+            }
+        }
+
         void put(ThreadLocalReference<?> reference, Object value) {
             // Keep track of first tombstone. That's where we want to go back
             // and add an entry if necessary.
@@ -405,7 +2607,8 @@ public class ThreadLocal<T> {
                     }
 
                     // Go back and replace first tombstone.
-                    VolatileArray.set2(table, firstTombstone, reference, value);
+                    VolatileArray.set2(table, firstTombstone, reference,
+                            value);
                     tombstones.decrementAndGet();
                     return;
                 }
@@ -417,14 +2620,20 @@ public class ThreadLocal<T> {
             }
         }
 
-        /**
-         * Gets value for given ThreadLocal after not finding it in the first
-         * slot.
-         */
         Object getAfterMiss(ThreadLocal<?> key) {
             // TODO: Do we need to pin the ThreadLocal here?
 
+            if (previous != null) {
+                return getDuringMigration(key);
+            }
+
             ThreadLocalReference<?> reference = key.reference;
+            if (dense() && reference.hash > mask) {
+                // The table doesn't cover this index yet, so the entry can't
+                // be here. Grow the table, and look up the entry there.
+                return rehash(reference.hash + 2).getAfterMiss(key);
+            }
+
             int index = reference.hash & mask;
 
             // If the first slot is empty, the search is over.
@@ -446,7 +2655,7 @@ public class ThreadLocal<T> {
                 }
 
                 // The table changed during initialValue().
-                latest.maybeRehash().put(reference, value);
+                latest.maybeRehash(reference).put(reference, value);
                 return value;
             }
 
@@ -458,7 +2667,9 @@ public class ThreadLocal<T> {
             for (index = next(index);; index = next(index)) {
                 Object k = VolatileArray.get(table, index);
                 if (k == reference) {
-                    return VolatileArray.get(table, index + 1);
+                    Object value = VolatileArray.get(table, index + 1);
+                    offHomeHit(key, index);
+                    return value;
                 }
 
                 // If no entry was found...
@@ -486,7 +2697,8 @@ public class ThreadLocal<T> {
 
                         // If this slot is still empty...
                         if (VolatileArray.get(table, index) == null) {
-                            VolatileArray.set2(table, index, reference, value);
+                            VolatileArray.set2(table, index, reference,
+                                    value);
                             load++;
 
                             // The table could now exceed its maximum load.
@@ -496,7 +2708,7 @@ public class ThreadLocal<T> {
                     }
 
                     // The table changed during initialValue().
-                    latest.maybeRehash().put(reference, value);
+                    latest.maybeRehash(reference).put(reference, value);
                     return value;
                 }
 
@@ -508,9 +2720,138 @@ public class ThreadLocal<T> {
         }
 
         /**
-         * Removes entry for the given ThreadLocal.
+         * Slow path for {@link #getAfterMiss} while we're migrating entries
+         * from the previous map.
          */
+        private Object getDuringMigration(ThreadLocal<?> key) {
+            migrate(MIGRATION_STEP);
+
+            ThreadLocalReference<?> reference = key.reference;
+            int index = indexOf(reference);
+            if (index != -1) {
+                return VolatileArray.get(table, index + 1);
+            }
+
+            LinearProbingMap previous = this.previous;
+            if (previous != null) {
+                index = previous.indexOf(reference);
+                if (index != -1) {
+                    // Move the entry now, so the next get() hits.
+                    Object value = VolatileArray.get(previous.table, index + 1);
+                    pin = key;
+                    put(reference, value);
+                    pin = null;
+                    maybeRehash();
+                    return value;
+                }
+            }
+
+            Object value = key.initialValue();
+            factory.getMap(Thread.currentThread()).maybeRehash(reference)
+                    .put(reference, value);
+            return value;
+        }
+
+        Object lookup(ThreadLocalReference<?> reference) {
+            int index = indexOf(reference);
+            if (index != -1) {
+                return VolatileArray.get(table, index + 1);
+            }
+
+            // The entry may not have moved yet.
+            LinearProbingMap previous = this.previous;
+            if (previous != null) {
+                index = previous.indexOf(reference);
+                if (index != -1) {
+                    return VolatileArray.get(previous.table, index + 1);
+                }
+            }
+            return ABSENT;
+        }
+
         void remove(ThreadLocalReference<?> key) {
+            LinearProbingMap previous = this.previous;
+            if (previous != null) {
+                migrate(MIGRATION_STEP);
+
+                // The entry may not have moved yet.
+                previous.delete(key);
+            }
+
+            delete(key);
+        }
+
+        /**
+         * Removes the entry for the given reference from this map's table.
+         * Called from the owning thread.
+         */
+        void delete(ThreadLocalReference<?> key) {
+            int index = indexOf(key);
+            if (index == -1) {
+                return;
+            }
+
+            if (VolatileArray.get(table, next(index)) == null) {
+                /*
+                 * No search passes through this slot, so we can empty it
+                 * instead of leaving a tombstone. Only the owning thread
+                 * fills null slots, so the next slot stays null, and the
+                 * Cleaner only writes to slots that hold its keys.
+                 */
+                VolatileArray.set2(table, index, null, null);
+                load--;
+            } else {
+                VolatileArray.set2(table, index, TOMBSTONE, null);
+                tombstones.incrementAndGet();
+            }
+            checkSparse();
+        }
+
+        /**
+         * Removes the entry for the given reference if it sits in its home
+         * slot and the next slot is empty, which is the common case. Then
+         * we can empty the slot without searching or leaving a tombstone.
+         * Lets {@link ThreadLocal#remove()} skip the virtual call into the
+         * map. Only called from the owning thread.
+         *
+         * @return false if the caller has to {@link #remove} the entry
+         */
+        final boolean removeFromHome(ThreadLocalReference<?> key) {
+            Object[] table = this.table;
+            int index = key.hash & mask;
+            if (VolatileArray.get(table, index) != key
+                    || VolatileArray.get(table, next(index)) != null
+                    || previous != null) {
+                return false;
+            }
+
+            // See delete().
+            VolatileArray.set2(table, index, null, null);
+            load--;
+            checkSparse();
+            return true;
+        }
+
+        /**
+         * Sets the shrink hint if few of the slots in this map hold live
+         * entries.
+         */
+        private void checkSparse() {
+            /*
+             * If we're running in the Cleaner, load may be stale.
+             * That's OK. This is just a hint.
+             */
+            if (!shrink && previous == null
+                    && isSparse(load - tombstones.get())) {
+                shrink = true;
+            }
+        }
+
+        /**
+         * Replaces the entry for the given reference with a tombstone. Safe
+         * to call from the Cleaner.
+         */
+        private void expungeEntry(ThreadLocalReference<?> key) {
             for (int index = key.hash & mask;;
                     index = next(index)) {
                 Object reference = VolatileArray.get(table, index);
@@ -526,6 +2867,7 @@ public class ThreadLocal<T> {
                      */
                     VolatileArray.set2(table, index, TOMBSTONE, null);
                     tombstones.incrementAndGet();
+                    checkSparse();
                     return;
                 }
 
@@ -535,6 +2877,24 @@ public class ThreadLocal<T> {
                 }
             }
         }
+
+        /**
+         * Removes the entry directly. {@link #expungeEntry} already
+         * tolerates concurrent access from the owning thread.
+         */
+        void expunge(ThreadLocalReference<?> key) {
+            expungeEntry(key);
+
+            /*
+             * If we read null here even though the owner just started a
+             * migration, the previous map can still hold our entry, but
+             * reference.get() returns null, so the owner won't move it.
+             */
+            LinearProbingMap previous = this.previous;
+            if (previous != null) {
+                previous.expungeEntry(key);
+            }
+        }
     }
 
     /**
@@ -579,7 +2939,265 @@ public class ThreadLocal<T> {
     }
 
     /**
-     * Inherits thread locals from parent thread.
+     * Holds the hashes of reclaimed thread locals, so that new thread locals
+     * land in the slots the old ones left behind instead of spreading out
+     * over new slots. Reuses the most recently released hashes first, and
+     * holds a limited number of them.
+     */
+    static class HashPool {
+
+        /** We drop released hashes beyond this many. */
+        static final int MAXIMUM_SIZE = 1 << 12;
+
+        /** Most hashes a thread takes at a time. */
+        static final int BATCH_SIZE = 16;
+
+        private int[] hashes = new int[16];
+
+        /** Number of hashes in the pool. Written while holding the lock. */
+        private volatile int size;
+
+        /**
+         * Returns true if the pool has no hashes. Doesn't lock.
+         */
+        boolean isEmpty() {
+            return size == 0;
+        }
+
+        /**
+         * Moves up to batch.length released hashes into the given array,
+         * the most recently released one last.
+         *
+         * @return number of hashes moved
+         */
+        synchronized int allocate(int[] batch) {
+            int size = this.size;
+            int count = Math.min(size, batch.length);
+            System.arraycopy(hashes, size - count, batch, 0, count);
+            this.size = size - count;
+            return count;
+        }
+
+        synchronized void release(int hash) {
+            int size = this.size;
+            if (size == MAXIMUM_SIZE) {
+                return;
+            }
+            if (size == hashes.length) {
+                hashes = Arrays.copyOf(hashes, size << 1);
+            }
+            hashes[size] = hash;
+            this.size = size + 1;
+        }
+    }
+
+    /**
+     * Allocates small, non-negative indices. Reuses released indices, lowest
+     * first, so that dense tables stay as small as possible.
+     *
+     * <p>Holds onto the key of the thread local that has each index until
+     * the Cleaner releases it. A tracker only gets enqueued if it's still
+     * reachable, and the key of a thread local that isn't in any map or
+     * direct slot, because it was never set or was removed everywhere,
+     * has nothing else keeping its tracker alive. Without us, its index
+     * would never come back.
+     */
+    static class IndexPool {
+
+        /** Released indices. */
+        private final BitSet free = new BitSet();
+
+        /** Lowest index we've never handed out. */
+        private int next;
+
+        /** Keys by index. Null for free indices. */
+        private ThreadLocalReference<?>[] keys
+                = new ThreadLocalReference<?>[16];
+
+        synchronized int allocate(ThreadLocalReference<?> key) {
+            return allocate(key, Integer.MAX_VALUE);
+        }
+
+        /**
+         * Allocates an index below the given limit for the given key.
+         *
+         * @return the index, or -1 if all of the indices below limit are
+         *  taken
+         */
+        synchronized int allocate(ThreadLocalReference<?> key, int limit) {
+            int index = free.nextSetBit(0);
+            if (index != -1) {
+                free.clear(index);
+            } else if (next < limit) {
+                index = next++;
+                if (index == keys.length) {
+                    keys = Arrays.copyOf(keys, index << 1);
+                }
+            } else {
+                return -1;
+            }
+            keys[index] = key;
+            return index;
+        }
+
+        synchronized void release(int index) {
+            free.set(index);
+            keys[index] = null;
+        }
+    }
+
+    /**
+     * Doubly linked list of keys, threaded through the keys themselves so
+     * adding and removing a key doesn't allocate.
+     */
+    static class KeyList {
+
+        private ThreadLocalReference<?> head;
+
+        synchronized void add(ThreadLocalReference<?> key) {
+            ThreadLocalReference<?> head = this.head;
+            key.nextKey = head;
+            if (head != null) {
+                head.previousKey = key;
+            }
+            this.head = key;
+        }
+
+        synchronized void remove(ThreadLocalReference<?> key) {
+            ThreadLocalReference<?> previous = key.previousKey;
+            ThreadLocalReference<?> next = key.nextKey;
+            if (previous == null) {
+                head = next;
+            } else {
+                previous.nextKey = next;
+            }
+            if (next != null) {
+                next.previousKey = previous;
+            }
+            key.previousKey = null;
+            key.nextKey = null;
+        }
+    }
+
+    /**
+     * Reads a system property. Returns null if the system properties
+     * haven't been initialized yet.
+     */
+    static String getProperty(final String name) {
+        return AccessController.doPrivileged(new PrivilegedAction<String>() {
+            public String run() {
+                try {
+                    return System.getProperty(name);
+                } catch (NullPointerException e) {
+                    return null;
+                }
+            }
+        });
+    }
+
+    /**
+     * Reads an integer system property. Returns the default value if the
+     * property isn't set, isn't a number or the system properties haven't
+     * been initialized yet. Parses the value itself instead of calling
+     * {@link Integer#getInteger}, which boxes, because Integer's cache may
+     * not be ready while we're bootstrapping.
+     */
+    static int getIntegerProperty(String name, int defaultValue) {
+        String value = getProperty(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Reads a boolean system property. Returns false if the system
+     * properties haven't been initialized yet.
+     */
+    static boolean getBooleanProperty(final String name) {
+        return AccessController.doPrivileged(new PrivilegedAction<Boolean>() {
+            public Boolean run() {
+                return Boolean.getBoolean(name);
+            }
+        });
+    }
+
+    /**
+     * Called by the given thread right before it exits. Drops the thread's
+     * maps and retires them. If we're learning map lengths, records how
+     * big the thread's map got. If we're recycling tables, pools the maps'
+     * tables.
+     */
+    static void threadExiting(Thread thread) {
+        ThreadLocalMap map = thread.threadLocals;
+        ThreadGroup group = thread.getThreadGroup();
+        if (learnLength() && map != null && group != null) {
+            ThreadLocalMap.LengthHistory.record(group, map);
+        }
+
+        ThreadLocalMap inheritableMap = thread.inheritableThreadLocals;
+
+        // Once we clear these, no new cleanup pass can find the maps.
+        // exit() would clear them next anyway.
+        thread.threadLocals = null;
+        thread.inheritableThreadLocals = null;
+
+        if (map != null) {
+            map.retire();
+        }
+        if (inheritableMap != null) {
+            inheritableMap.retire();
+        }
+
+        if (recycleTables()) {
+            /*
+             * A pass that's still running may have found the maps before
+             * we cleared the fields, and it could write to the tables after
+             * a new thread takes them. Rather than wait, we let the garbage
+             * collector have the tables.
+             */
+            if (Cleaner.isCleaning()) {
+                return;
+            }
+
+            if (map != null) {
+                ThreadLocalMap.TablePool.release(map);
+            }
+            if (inheritableMap != null) {
+                ThreadLocalMap.TablePool.release(inheritableMap);
+            }
+        }
+    }
+
+    /**
+     * Gives a new thread its parent's inheritable values. Called from the
+     * Thread constructor, but only if the parent has a map, so creating
+     * threads while the VM boots doesn't initialize ThreadLocal. In unified
+     * mode, inheritable thread locals keep their entries in the normal map,
+     * except for ones created before the VM had booted.
+     */
+    static void inheritThreadLocals(Thread parent, Thread child) {
+        if (parent.threadLocals != null && unified()) {
+            child.threadLocals = createInheritedMap(parent.threadLocals);
+        }
+        if (parent.inheritableThreadLocals != null) {
+            child.inheritableThreadLocals
+                    = createInheritedMap(parent.inheritableThreadLocals);
+        }
+    }
+
+    /**
+     * Inherits thread locals from parent thread. In unified mode, the
+     * parent map holds both kinds of thread locals, and we only copy the
+     * inheritable ones. The child's map is sized for the inheritable
+     * entries alone, not for the parent's whole table.
+     *
+     * @return the child's map, or null if the parent doesn't have any
+     *  inheritable entries
      */
     static ThreadLocalMap createInheritedMap(ThreadLocalMap parentMap) {
         /*
@@ -587,8 +3205,29 @@ public class ThreadLocal<T> {
          * needs immediate access (or else we may leak entries for thread
          * locals that get reclaimed after we've already transferred them).
          */
-        ThreadLocalMap childMap = new ThreadLocalMap(parentMap.factory,
-                parentMap.table.length);
+        parentMap.settle();
+        int entries = 0;
+        int maximumHash = 0;
+        for (Object[] table : parentMap.tables()) {
+            for (int i = table.length - 2; i >= 0; i -= 2) {
+                Object k = table[i];
+                if (k instanceof ThreadLocalReference<?>) {
+                    ThreadLocalReference<?> reference
+                            = (ThreadLocalReference<?>) k;
+                    if (reference.isInheritable() && reference.get() != null) {
+                        entries++;
+                        maximumHash = Math.max(maximumHash, reference.hash);
+                    }
+                }
+            }
+        }
+        if (entries == 0) {
+            return null;
+        }
+
+        ThreadLocalMap childMap = ThreadLocalMap.create(parentMap.factory,
+                ThreadLocalMap.lengthFor(entries, maximumHash),
+                parentMap.strategy, null);
         InheritableThreadLocal.inheritValues(parentMap, childMap);
         return childMap;
     }
@@ -608,6 +3247,19 @@ public class ThreadLocal<T> {
         private static final ThreadLocalReferenceQueue queue
                 = new ThreadLocalReferenceQueue();
 
+        /**
+         * Incremented before and after each cleanup pass, so it's odd while
+         * the Cleaner may be writing to maps. Only the Cleaner writes it.
+         */
+        private static volatile int epoch;
+
+        /**
+         * Returns true if a cleanup pass is in progress.
+         */
+        static boolean isCleaning() {
+            return (epoch & 1) != 0;
+        }
+
         static {
             Thread cleanerThread = new Thread(new Cleaner(),
                     "ThreadLocal.Cleaner");
@@ -627,8 +3279,7 @@ public class ThreadLocal<T> {
 
                 try {
                     ThreadLocalReference<?> reference = queue.remove();
-                    reference.clear();
-                    if (reference.isInheritable()) {
+                    if (reference.inInheritableMap()) {
                         inheritableReferences.add(reference);
                     } else {
                         references.add(reference);
@@ -639,15 +3290,54 @@ public class ThreadLocal<T> {
 
                 ThreadLocalReference next;
                 while ((next = queue.poll()) != null) {
-                    next.clear();
-                    if (next.isInheritable()) {
+                    if (next.inInheritableMap()) {
                         inheritableReferences.add(next);
                     } else {
                         references.add(next);
                     }
                 }
 
+                // Hold the keys while we clean up. Robin Hood maps take
+                // holds of their own, see RobinHoodThreadLocalMap.expunge().
+                hold(references);
+                hold(inheritableReferences);
+
+                epoch++;
                 cleanUp(references, inheritableReferences);
+                epoch++;
+
+                // These references are gone from every direct slot now, so
+                // we can hand the slots out again.
+                releaseDirectSlots(references);
+
+                // Once every map that still has an entry for a key lets go
+                // of it too, its index or hash goes back to the pool.
+                releaseHolds(references);
+                releaseHolds(inheritableReferences);
+            }
+        }
+
+        private static void hold(List<ThreadLocalReference<?>> references) {
+            for (int i = references.size() - 1; i >= 0; i--) {
+                references.get(i).hold();
+            }
+        }
+
+        private static void releaseDirectSlots(
+                List<ThreadLocalReference<?>> references) {
+            for (int i = references.size() - 1; i >= 0; i--) {
+                int directIndex = references.get(i).directIndex;
+                if (directIndex != -1) {
+                    int slot = directIndex >> 1;
+                    DIRECT_SLOT_INDICES.release(slot);
+                }
+            }
+        }
+
+        private static void releaseHolds(
+                List<ThreadLocalReference<?>> references) {
+            for (int i = references.size() - 1; i >= 0; i--) {
+                references.get(i).releaseHold();
             }
         }
 
@@ -673,14 +3363,42 @@ public class ThreadLocal<T> {
                 Thread thread = threads[i];
                 threads[i] = null;
 
+                /*
+                 * If the thread replaced a map while we handed it keys, it
+                 * may have stopped looking at the map before we were done,
+                 * so we retire the map ourselves.
+                 */
                 ThreadLocalMap map = thread.threadLocals;
                 if (map != null) {
                     removeAll(map, references);
+                    if (thread.threadLocals != map) {
+                        map.retire();
+                    }
                 }
 
                 ThreadLocalMap inheritableMap = thread.inheritableThreadLocals;
                 if (inheritableMap != null) {
                     removeAll(inheritableMap, inheritableReferences);
+                    if (thread.inheritableThreadLocals != inheritableMap) {
+                        inheritableMap.retire();
+                    }
+                }
+
+                Object[] directEntries = thread.directThreadLocals;
+                if (directEntries != null) {
+                    removeDirect(directEntries, references);
+                }
+            }
+        }
+
+        private static void removeDirect(Object[] entries,
+                List<ThreadLocalReference<?>> references) {
+            for (int i = references.size() - 1; i >= 0; i--) {
+                ThreadLocalReference<?> key = references.get(i);
+                int index = key.directIndex;
+                if (index != -1 && VolatileArray.get(entries, index) == key) {
+                    // Value first. See LinearProbingMap.clear().
+                    VolatileArray.set2(entries, index, null, null);
                 }
             }
         }
@@ -693,7 +3411,7 @@ public class ThreadLocal<T> {
              */
             for (int i = references.size() - 1; i >= 0; i--) {
                 ThreadLocalReference<?> key = references.get(i);
-                map.remove(key);
+                map.expunge(key);
             }
         }
     }
@@ -709,12 +3427,43 @@ public class ThreadLocal<T> {
 
         /** @see java.lang.ref.ReferenceQueue#remove() */
         private ThreadLocalReference<?> remove() throws InterruptedException {
-            return (ThreadLocalReference<?>) delegate.remove();
+            return keyFor(delegate.remove());
         }
 
         /** @see java.lang.ref.ReferenceQueue#poll() */
         private ThreadLocalReference<?> poll() {
-            return (ThreadLocalReference<?>) delegate.poll();
+            return keyFor(delegate.poll());
+        }
+
+        /**
+         * Clears an enqueued reference and returns the map key it stands
+         * for, or null if reference is null.
+         */
+        private static ThreadLocalReference<?> keyFor(
+                Reference<? extends ThreadLocal<?>> reference) {
+            if (reference == null) {
+                return null;
+            }
+            reference.clear();
+            if (reference instanceof Tracker) {
+                return ((Tracker) reference).key;
+            }
+            return (ThreadLocalReference<?>) reference;
+        }
+    }
+
+    /**
+     * Enqueues a normal thread local's key once the thread local is
+     * phantom reachable. See {@link ThreadLocalReference}.
+     */
+    private static class Tracker extends PhantomReference<ThreadLocal<?>> {
+
+        /** Key to clean up. */
+        final ThreadLocalReference<?> key;
+
+        Tracker(ThreadLocal<?> referent, ThreadLocalReference<?> key) {
+            super(referent, Cleaner.queue.delegate);
+            this.key = key;
         }
     }
 }
@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2008 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package java.lang;
+
+/**
+ * A fixed set of thread local fields that live together in one per-thread
+ * record. The record takes up a single entry in the thread's map, so
+ * reading a field costs one lookup plus one array load, no matter how
+ * many fields the group has. Use a group for values that are usually
+ * read together, like the user, locale and deadline of a request.
+ *
+ * <pre>
+ * static final ThreadLocalGroup REQUEST = new ThreadLocalGroup();
+ * static final ThreadLocalGroup.Field&lt;User&gt; USER = REQUEST.newField();
+ * static final ThreadLocalGroup.Field&lt;Locale&gt; LOCALE = REQUEST.newField();
+ * </pre>
+ *
+ * <p>Create all of the fields before any thread uses the group. Once a
+ * thread has a record, the set of fields is fixed.
+ *
+ * @see java.lang.ThreadLocal
+ */
+public class ThreadLocalGroup {
+
+    /** Marks fields that don't have a value in a record yet. */
+    private static final Object UNSET = new Object();
+
+    /** Each thread's record. Holds one value per field. */
+    private final ThreadLocal<Object[]> records = new ThreadLocal<Object[]>() {
+        @Override
+        protected Object[] initialValue() {
+            return newRecord();
+        }
+    };
+
+    /** Number of fields. Guarded by this. */
+    private int size;
+
+    /** Set once we've created a record. Guarded by this. */
+    private boolean inUse;
+
+    /**
+     * Adds a field whose initial value is null.
+     *
+     * @throws IllegalStateException if a thread has already used the group
+     */
+    public <T> Field<T> newField() {
+        return newField(null);
+    }
+
+    /**
+     * Adds a field whose initial value in each thread comes from the given
+     * supplier, or is null if supplier is null.
+     *
+     * @throws IllegalStateException if a thread has already used the group
+     */
+    public synchronized <T> Field<T> newField(
+            ThreadLocal.Supplier<? extends T> supplier) {
+        if (inUse) {
+            throw new IllegalStateException(
+                    "Can't add fields after a thread has used the group.");
+        }
+        return new Field<T>(this, size++, supplier);
+    }
+
+    /**
+     * Removes the current thread's values of all of the fields. The next
+     * access to a field starts from its initial value again.
+     */
+    public void remove() {
+        records.remove();
+    }
+
+    /**
+     * Creates a record for the current thread, with every field unset.
+     */
+    private synchronized Object[] newRecord() {
+        inUse = true;
+        Object[] record = new Object[size];
+        for (int i = 0; i < record.length; i++) {
+            record[i] = UNSET;
+        }
+        return record;
+    }
+
+    /**
+     * One field of a {@link ThreadLocalGroup}. Behaves like a {@link
+     * ThreadLocal}.
+     */
+    public static final class Field<T> {
+
+        private final ThreadLocalGroup group;
+
+        /** Index of this field's value in a record. */
+        private final int index;
+
+        /** Supplies initial values, or null if they're null. */
+        private final ThreadLocal.Supplier<? extends T> supplier;
+
+        private Field(ThreadLocalGroup group, int index,
+                ThreadLocal.Supplier<? extends T> supplier) {
+            this.group = group;
+            this.index = index;
+            this.supplier = supplier;
+        }
+
+        /**
+         * Returns the current thread's value of this field. See {@link
+         * ThreadLocal#get()}.
+         */
+        @SuppressWarnings("unchecked")
+        public T get() {
+            Object[] record = group.records.get();
+            Object value = record[index];
+            if (value == UNSET) {
+                value = supplier == null ? null : supplier.get();
+                record[index] = value;
+            }
+            return (T) value;
+        }
+
+        /**
+         * Sets the current thread's value of this field. See {@link
+         * ThreadLocal#set(Object)}.
+         */
+        public void set(T value) {
+            group.records.get()[index] = value;
+        }
+
+        /**
+         * Removes the current thread's value of this field. The next {@link
+         * #get()} returns the initial value again. See {@link
+         * ThreadLocal#remove()}.
+         */
+        public void remove() {
+            Object[] record = group.records.getIfPresent();
+            if (record != null) {
+                record[index] = UNSET;
+            }
+        }
+    }
+}
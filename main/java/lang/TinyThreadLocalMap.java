@@ -0,0 +1,217 @@
+/*
+ * Copyright (C) 2008 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package java.lang;
+
+import java.lang.ThreadLocal.ThreadLocalMap;
+import java.lang.ThreadLocal.ThreadLocalReference;
+import java.lang.ThreadLocal.VolatileArray;
+
+/**
+ * Map for threads that only use a few thread locals. Holds up to four
+ * entries in an 8-slot table, and doesn't keep load counters. An entry goes
+ * in its home slot if it's free, so {@link ThreadLocal#get()} usually hits
+ * inline, and anywhere else otherwise. Lookups that miss search the whole
+ * table, and hot entries move into their home slots over time. When the
+ * table fills up, we upgrade to a map of the configured kind.
+ *
+ * <p>We don't need tombstones since we never stop searching early. Removing
+ * an entry nulls out its slots, value first, just like a tombstone write, so
+ * the Cleaner can remove entries directly.
+ */
+class TinyThreadLocalMap extends ThreadLocalMap {
+
+    /** Capacity = 4 */
+    static final int LENGTH = 8;
+
+    /**
+     * Constructs an empty map.
+     */
+    TinyThreadLocalMap(Factory factory) {
+        super(factory, LENGTH);
+    }
+
+    /**
+     * Finds the given reference.
+     *
+     * @return index of the key, or -1 if the map doesn't contain it
+     */
+    int indexOf(ThreadLocalReference<?> reference) {
+        Object[] table = this.table;
+        for (int i = 0; i < LENGTH; i += 2) {
+            if (VolatileArray.get(table, i) == reference) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Finds a free slot, preferring the given reference's home slot.
+     *
+     * @return index of the slot, or -1 if the map is full
+     */
+    private int freeIndex(ThreadLocalReference<?> reference) {
+        Object[] table = this.table;
+        int home = reference.hash & mask;
+        if (VolatileArray.get(table, home) == null) {
+            return home;
+        }
+        for (int i = 0; i < LENGTH; i += 2) {
+            if (VolatileArray.get(table, i) == null) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    boolean hasRoomFor(int entries) {
+        return entries <= LENGTH >> 1;
+    }
+
+    boolean canAdd(int entries) {
+        Object[] table = this.table;
+        for (int i = 0; i < LENGTH && entries > 0; i += 2) {
+            if (VolatileArray.get(table, i) == null) {
+                entries--;
+            }
+        }
+        return entries <= 0;
+    }
+
+    ThreadLocalMap maybeRehash(ThreadLocalReference<?> reference) {
+        if (indexOf(reference) != -1 || freeIndex(reference) != -1) {
+            return this;
+        }
+
+        return upgrade(reference);
+    }
+
+    /**
+     * Moves the live entries into a new map of the configured kind that
+     * can hold them plus the given reference.
+     *
+     * @return new map
+     */
+    private ThreadLocalMap upgrade(ThreadLocalReference<?> reference) {
+        int length = ThreadLocalMap.INITIAL_LENGTH;
+        if (ThreadLocal.dense()) {
+            // The new table must cover every index.
+            int maximumHash = reference.hash;
+            for (int i = 0; i < LENGTH; i += 2) {
+                Object k = VolatileArray.get(table, i);
+                if (k != null) {
+                    maximumHash = Math.max(maximumHash,
+                            ((ThreadLocalReference<?>) k).hash);
+                }
+            }
+            while (length <= maximumHash) {
+                length <<= 1;
+            }
+        }
+
+        ThreadLocalMap newMap = factory.newMap(Thread.currentThread(), length);
+
+        Object[] table = this.table;
+        for (int i = 0; i < LENGTH; i += 2) {
+            Object k = VolatileArray.get(table, i);
+            if (k == null) {
+                continue;
+            }
+
+            ThreadLocalReference<?> entry = (ThreadLocalReference<?>) k;
+            ThreadLocal<?> threadLocal = entry.get();
+            if (threadLocal != null) {
+                // Same as LinearProbingMap.rehash(). Keep the Cleaner away
+                // while we move this entry.
+                pin = threadLocal;
+                newMap.put(entry, VolatileArray.get(table, i + 1));
+                pin = null;
+            }
+        }
+
+        return newMap;
+    }
+
+    void put(ThreadLocalReference<?> reference, Object value) {
+        int index = indexOf(reference);
+        if (index != -1) {
+            // Replace existing entry.
+            VolatileArray.set(table, index + 1, value);
+            return;
+        }
+
+        index = freeIndex(reference);
+        if (index == -1) {
+            /*
+             * Callers check maybeRehash() or canAdd() first, so we shouldn't
+             * get here. If we do, an unchecked write at -1 would corrupt the
+             * heap, so move to a bigger map instead.
+             */
+            upgrade(reference).put(reference, value);
+            return;
+        }
+        VolatileArray.set2(table, index, reference, value);
+    }
+
+    Object lookup(ThreadLocalReference<?> reference) {
+        int index = indexOf(reference);
+        return index == -1 ? ThreadLocal.ABSENT
+                : VolatileArray.get(table, index + 1);
+    }
+
+    Object getAfterMiss(ThreadLocal<?> key) {
+        ThreadLocalReference<?> reference = key.reference;
+        int index = indexOf(reference);
+        if (index != -1) {
+            Object value = VolatileArray.get(table, index + 1);
+            if (index != (reference.hash & mask)) {
+                offHomeHit(key, index);
+            }
+            return value;
+        }
+
+        Object value = key.initialValue();
+
+        // initialValue() may have replaced the map.
+        factory.getMap(Thread.currentThread()).maybeRehash(reference)
+                .put(reference, value);
+        return value;
+    }
+
+    void remove(ThreadLocalReference<?> key) {
+        delete(key);
+    }
+
+    /**
+     * Removes the entry directly. {@link #delete} clears the value before
+     * the key, so the owning thread can't reuse the slot before we're done.
+     */
+    void expunge(ThreadLocalReference<?> key) {
+        delete(key);
+    }
+
+    /**
+     * Removes the entry for the given reference. Safe to call from the
+     * Cleaner.
+     */
+    private void delete(ThreadLocalReference<?> key) {
+        int index = indexOf(key);
+        if (index != -1) {
+            VolatileArray.set2(table, index, null, null);
+        }
+    }
+}
@@ -1,7 +1,7 @@
-# Usage ./perf.sh [number 1-8]
+# Usage ./perf.sh [number 1-11] [test arguments]
 
 echo ==========================================
-echo TLTest${1}
+echo TLTest${1} "${@:2}"
 echo ==========================================
 
 JAVA='java -Xms128m -Xmx128m -server'
@@ -9,11 +9,11 @@ JAVA='java -Xms128m -Xmx128m -server'
 echo
 echo Default ThreadLocal:
 echo
-$JAVA -cp out/test TLTest${1}
+$JAVA -cp out/test TLTest${1} "${@:2}"
 
 echo
 echo Google ThreadLocal:
 echo
-$JAVA -Xbootclasspath/p:out/main -cp out/test TLTest${1}
+$JAVA -Xbootclasspath/p:out/main -cp out/test TLTest${1} "${@:2}"
 
 echo
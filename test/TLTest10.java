@@ -0,0 +1,108 @@
+/*
+  First-access cost: anonymous subclasses that override initialValue()
+  versus ThreadLocal.withInitial(). Each pass removes every thread local and
+  then gets it again, so every get() takes the miss path and computes an
+  initial value. Only runs the withInitial() half against a ThreadLocal
+  that has it.
+
+  Both styles share the miss path, so whichever runs second inherits the
+  first one's JIT profile. Compare them in separate runs:
+
+    ./perf.sh 10 subclass
+    ./perf.sh 10 supplied
+*/
+
+class TLTest10 {
+
+    static final int ITERS = 2000000;
+    static final int NREPS = 5;
+    static final int NLOCALS = 8;
+
+    static final Integer[] values = new Integer[NLOCALS];
+    static {
+        for (int i = 0; i < NLOCALS; ++i) 
+            values[i] = new Integer(i);
+    }
+
+    static volatile int total; 
+
+    // One class per thread local, like most code has.
+    static ThreadLocal[] subclassed() {
+        return new ThreadLocal[] {
+            new ThreadLocal() { protected Object initialValue() { return values[0]; } },
+            new ThreadLocal() { protected Object initialValue() { return values[1]; } },
+            new ThreadLocal() { protected Object initialValue() { return values[2]; } },
+            new ThreadLocal() { protected Object initialValue() { return values[3]; } },
+            new ThreadLocal() { protected Object initialValue() { return values[4]; } },
+            new ThreadLocal() { protected Object initialValue() { return values[5]; } },
+            new ThreadLocal() { protected Object initialValue() { return values[6]; } },
+            new ThreadLocal() { protected Object initialValue() { return values[7]; } },
+        };
+    }
+
+    static ThreadLocal[] supplied() {
+        ThreadLocal[] locals = new ThreadLocal[NLOCALS];
+        for (int i = 0; i < NLOCALS; ++i) {
+            final Integer value = values[i];
+            locals[i] = ThreadLocal.withInitial(new ThreadLocal.Supplier() {
+                public Object get() { return value; }
+            });
+        }
+        return locals;
+    }
+
+    static int loop(ThreadLocal[] locals, int n) {
+        int sum = 0;
+        for (int i = 0; i < n; ++i) {
+            for (int j = 0; j < NLOCALS; ++j) 
+                locals[j].remove();
+            for (int j = 0; j < NLOCALS; ++j) 
+                sum += ((Integer) locals[j].get()).intValue();
+        }
+        return sum;
+    }
+
+    static void time(String name, ThreadLocal[] locals) {
+        // Warm up.
+        for (int i = 0; i < 100; ++i) 
+            total += loop(locals, 10000);
+
+        long times = 0;
+        long least = 0;
+        for (int reps = 0; reps < NREPS; ++reps) {
+            long startTime = System.currentTimeMillis();
+            total += loop(locals, ITERS);
+            long elapsed = System.currentTimeMillis() - startTime;
+            System.out.println(name + elapsed + "ms");
+            times += elapsed;
+            if (reps == 0 || elapsed < least) least = elapsed;
+        }
+
+        System.out.println("------------------------");
+        long ops = (long) ITERS * NLOCALS;
+        long ave = (times * 1000 * 1000) / (NREPS * ops);
+        long min = (least * 1000 * 1000) / ops;
+        System.out.println(name + ave + "ns\t" + min + "ns");
+    }
+
+    public static void main(String[] args) {
+        String style = args.length > 0 ? args[0] : "both";
+        if (!style.equals("supplied")) 
+            time("Subclass:       ", subclassed());
+        if (style.equals("subclass")) 
+            return;
+
+        ThreadLocal[] supplied;
+        try {
+            supplied = supplied();
+        }
+        catch (LinkageError e) {
+            System.out.println("Supplied:       n/a");
+            return;
+        }
+        time("Supplied:       ", supplied);
+
+        if (total == 0) 
+            System.out.println("useless number = " + total);
+    }
+}
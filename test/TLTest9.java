@@ -0,0 +1,86 @@
+/*
+  Request-scoped context pattern: each "request" sets a few thread locals,
+  reads them, and removes them again, so set() and remove() run as often as
+  get().
+*/
+
+class TLTest9 implements Runnable {
+
+    static final int ITERS = 20000000;
+    static final int NTHREADS = 2;
+    static final int NREPS = 5;
+    static final int NLOCALS = 4;
+    static final int GETS_PER_REQUEST = 4;
+
+    static final ThreadLocal[] locals = new ThreadLocal[NLOCALS];
+    static {
+        for (int i = 0; i < NLOCALS; ++i) 
+            locals[i] = new ThreadLocal();
+    }
+
+    static final Integer[] values = new Integer[256];
+    static {
+        for (int i = 0; i < values.length; ++i) 
+            values[i] = new Integer(i);
+    }
+
+    static volatile int total; 
+
+    static int loop(int n) {
+        int sum = 0;
+        for (int i = 0; i < n; ++i) {
+            Integer value = values[i & 255];
+            for (int j = 0; j < NLOCALS; ++j) 
+                locals[j].set(value);
+            for (int k = 0; k < GETS_PER_REQUEST; ++k) 
+                for (int j = 0; j < NLOCALS; ++j) 
+                    sum += ((Integer) locals[j].get()).intValue();
+            for (int j = 0; j < NLOCALS; ++j) 
+                locals[j].remove();
+        }
+        return sum;
+    }
+
+    public void run() {
+        total += loop(ITERS / NTHREADS);
+    }
+
+    public static void main(String[] args) {
+        // Warm up.
+        for (int i = 0; i < 100; ++i) 
+            total += loop(10000);
+
+        long times = 0;
+        long least = 0;
+        for (int reps = 0; reps < NREPS; ++reps) {
+            Thread[] threads = new Thread[NTHREADS];
+            for (int i = 0; i < NTHREADS; ++i) 
+                threads[i] = new Thread(new TLTest9());
+
+            long startTime = System.currentTimeMillis();
+            for (int i = 0; i < NTHREADS; ++i) 
+                threads[i].start();
+            try {
+                for (int i = 0; i < NTHREADS; ++i) 
+                    threads[i].join();
+            }
+            catch (InterruptedException ie) {
+                System.out.println("Interrupted");
+                return;
+            }
+
+            long elapsed = System.currentTimeMillis() - startTime;
+            System.out.println("Request:        " + elapsed + "ms");
+            times += elapsed;
+            if (reps == 0 || elapsed < least) least = elapsed;
+
+            if (total == 0) 
+                System.out.println("useless number = " + total);
+        }
+
+        System.out.println("------------------------");
+        long ave = (times * 1000 * 1000) / (NREPS * (long) ITERS);
+        long min = (least * 1000 * 1000) / ITERS;
+        System.out.println("Request:        " + ave + "ns\t" + min + "ns");
+    }
+}
@@ -19,6 +19,12 @@ package java.lang;
 
 import junit.framework.TestCase;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
 public class ThreadLocalTest extends TestCase {
 
     /**
@@ -176,4 +182,1186 @@ public class ThreadLocalTest extends TestCase {
         assertSame(value, threadLocal.get());
         assertSame(inheritedValue, holder[0]);
     }
+
+    public void testInheritableSetAndRemove() {
+        InheritableThreadLocal<String> tl = new InheritableThreadLocal<String>() {
+            @Override
+            protected String initialValue() {
+                return "initial";
+            }
+        };
+
+        tl.set("a");
+        tl.set("b");
+        assertEquals("b", tl.get());
+        tl.remove();
+        assertEquals("initial", tl.get());
+        tl.remove();
+        tl.remove();
+        assertEquals("initial", tl.get());
+    }
+
+    public void testDirectSlots() throws InterruptedException {
+        final ThreadLocal<String> tl = new ThreadLocal<String>(true) {
+            @Override
+            protected String initialValue() {
+                return "initial";
+            }
+        };
+        assertTrue(tl.directIndex != -1);
+
+        assertEquals("initial", tl.get());
+        tl.set("fixture");
+        assertEquals("fixture", tl.get());
+        tl.set(null);
+        assertNull(tl.get());
+
+        final String[] other = new String[1];
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                other[0] = tl.get();
+            }
+        };
+        thread.start();
+        thread.join();
+        assertEquals("initial", other[0]);
+
+        tl.remove();
+        assertEquals("initial", tl.get());
+
+        // Once the slots run out, thread locals fall back to the map.
+        List<ThreadLocal<String>> locals = new ArrayList<ThreadLocal<String>>();
+        for (int i = 0; i < ThreadLocal.Flags.DIRECT_SLOTS; i++) {
+            locals.add(new ThreadLocal<String>(true));
+        }
+        ThreadLocal<String> last = locals.get(locals.size() - 1);
+        assertEquals(-1, last.directIndex);
+        last.set("map");
+        assertEquals("map", last.get());
+
+        // The slots free up once the thread locals are garbage collected,
+        // so the other tests still get them.
+        locals = null;
+        last = null;
+        ThreadLocal<String> direct = new ThreadLocal<String>(true);
+        for (int i = 0; i < 100 && direct.directIndex == -1; i++) {
+            System.gc();
+            Thread.sleep(10);
+            direct = new ThreadLocal<String>(true);
+        }
+        assertTrue(direct.directIndex != -1);
+    }
+
+    public void testUnusedIndicesComeBack() throws InterruptedException {
+        // These never get into a map, but their indices (or hashes) still
+        // come back.
+        List<Integer> hashes = new ArrayList<Integer>();
+        for (int i = 0; i < 10; i++) {
+            hashes.add(new ThreadLocal<Object>().reference.hash);
+        }
+
+        List<ThreadLocal<Object>> locals = new ArrayList<ThreadLocal<Object>>();
+        boolean reused = false;
+        for (int i = 0; i < 100 && !reused; i++) {
+            System.gc();
+            Thread.sleep(10);
+            for (int j = 0; j < 10 && !reused; j++) {
+                ThreadLocal<Object> local = new ThreadLocal<Object>();
+                locals.add(local);
+                reused = hashes.contains(local.reference.hash);
+            }
+        }
+        assertTrue(reused);
+    }
+
+    public void testHandle() {
+        ThreadLocal<String> tl = new ThreadLocal<String>() {
+            @Override
+            protected String initialValue() {
+                return "initial";
+            }
+        };
+        ThreadLocal.Handle<String> handle = tl.handle();
+        assertEquals("initial", handle.get());
+        handle.set("a");
+        assertEquals("a", tl.get());
+        tl.set("b");
+        assertEquals("b", handle.get());
+
+        // Force the map to rehash a few times.
+        List<ThreadLocal<String>> locals = new ArrayList<ThreadLocal<String>>();
+        for (int i = 0; i < 1000; i++) {
+            ThreadLocal<String> local = new ThreadLocal<String>();
+            local.set("x");
+            locals.add(local);
+        }
+        assertEquals("b", handle.get());
+        handle.set("c");
+        assertEquals("c", tl.get());
+
+        tl.remove();
+        assertEquals("initial", handle.get());
+        assertEquals("initial", tl.get());
+    }
+
+    public void testReserveCapacity() throws InterruptedException {
+        final boolean[] grew = new boolean[1];
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                ThreadLocal.reserveCapacity(1000);
+                ThreadLocal.ThreadLocalMap map
+                        = Thread.currentThread().threadLocals;
+                List<ThreadLocal<Object>> locals
+                        = new ArrayList<ThreadLocal<Object>>();
+                for (int i = 0; i < 1000; i++) {
+                    ThreadLocal<Object> local = new ThreadLocal<Object>();
+                    local.set(i);
+                    locals.add(local);
+                }
+                grew[0] = Thread.currentThread().threadLocals != map;
+            }
+        };
+        thread.start();
+        thread.join();
+
+        if (!ThreadLocal.dense()) {
+            // Dense tables grow to cover new indices.
+            assertFalse(grew[0]);
+        }
+
+        // Counts this big used to overflow.
+        try {
+            ThreadLocal.reserveCapacity(
+                    ThreadLocal.ThreadLocalMap.MAXIMUM_RESERVED_CAPACITY + 1);
+            fail();
+        } catch (IllegalArgumentException expected) {}
+        TestFactory factory = new TestFactory(false, 32);
+        assertFalse(factory.map.hasRoomFor(Integer.MAX_VALUE / 2));
+    }
+
+    public void testThreadFactory() throws InterruptedException {
+        final List<Thread> initialized = new ArrayList<Thread>();
+        final ThreadLocal<Object> warm = new ThreadLocal<Object>() {
+            @Override
+            protected Object initialValue() {
+                initialized.add(Thread.currentThread());
+                return "warm";
+            }
+        };
+
+        final boolean[] warmedUp = new boolean[1];
+        Thread thread = ThreadLocal.threadFactory(64, warm).newThread(
+                new Runnable() {
+            public void run() {
+                warmedUp[0] = initialized.contains(Thread.currentThread());
+            }
+        });
+        thread.start();
+        thread.join();
+        assertTrue(warmedUp[0]);
+    }
+
+    public void testLengthHistory() {
+        ThreadLocal.ThreadLocalMap.LengthHistory history
+                = new ThreadLocal.ThreadLocalMap.LengthHistory();
+        for (int i = 0; i < 9; i++) {
+            history.record(64);
+        }
+        history.record(1024);
+        // 90% of the threads fit in 64.
+        assertEquals(64, history.length);
+        history.record(1024);
+        assertEquals(1024, history.length);
+
+        history = new ThreadLocal.ThreadLocalMap.LengthHistory();
+        history.record(1 << 20);
+        assertEquals(ThreadLocal.ThreadLocalMap.LengthHistory.MAXIMUM_LENGTH,
+                history.length);
+    }
+
+    public void testLearnedLength() throws InterruptedException {
+        if (!ThreadLocal.learnLength()) {
+            return;
+        }
+
+        ThreadGroup group = new ThreadGroup("testLearnedLength");
+        Thread thread = new Thread(group, new Runnable() {
+            public void run() {
+                for (int i = 0; i < 500; i++) {
+                    new ThreadLocal<Object>().set(i);
+                }
+            }
+        });
+        thread.start();
+        thread.join();
+
+        final int[] length = new int[1];
+        thread = new Thread(group, new Runnable() {
+            public void run() {
+                new ThreadLocal<Object>().set("first");
+                length[0] = Thread.currentThread().threadLocals.table.length;
+            }
+        });
+        thread.start();
+        thread.join();
+        // Big enough for 500 entries right away.
+        assertTrue(length[0] >= 2048);
+    }
+
+    public void testGetIfPresent() {
+        List<ThreadLocal<String>> locals = new ArrayList<ThreadLocal<String>>();
+        for (int i = 0; i < 100; i++) {
+            locals.add(new ThreadLocal<String>() {
+                @Override
+                protected String initialValue() {
+                    return "initial";
+                }
+            });
+        }
+        locals.add(new InheritableThreadLocal<String>());
+        ThreadLocal<String> direct = new ThreadLocal<String>(true);
+        assertTrue(direct.directIndex != -1);
+        locals.add(direct);
+
+        for (int i = 0; i < locals.size(); i += 2) {
+            locals.get(i).set(i % 4 == 0 ? null : "value");
+        }
+        for (int i = 0; i < locals.size(); i++) {
+            ThreadLocal<String> local = locals.get(i);
+            boolean set = i % 2 == 0;
+            assertEquals(set, local.isPresent());
+            assertEquals(set && i % 4 != 0 ? "value" : null,
+                    local.getIfPresent());
+            // Still absent.
+            assertEquals(set, local.isPresent());
+        }
+
+        ThreadLocal<String> local = locals.get(0);
+        local.remove();
+        assertFalse(local.isPresent());
+        assertEquals("initial", local.get());
+        assertTrue(local.isPresent());
+    }
+
+    public void testUpdateAndGet() {
+        final int[] initialized = new int[1];
+        ThreadLocal<Integer> counter = new ThreadLocal<Integer>() {
+            @Override
+            protected Integer initialValue() {
+                initialized[0]++;
+                return 0;
+            }
+        };
+        ThreadLocal.UnaryOperator<Integer> increment
+                = new ThreadLocal.UnaryOperator<Integer>() {
+            public Integer apply(Integer value) {
+                return value + 1;
+            }
+        };
+        for (int i = 1; i <= 100; i++) {
+            assertEquals(i, (int) counter.updateAndGet(increment));
+        }
+        assertEquals(1, initialized[0]);
+
+        ThreadLocal.BinaryOperator<Integer> add
+                = new ThreadLocal.BinaryOperator<Integer>() {
+            public Integer apply(Integer left, Integer right) {
+                return left + right;
+            }
+        };
+        assertEquals(110, (int) counter.accumulateAndGet(10, add));
+        assertEquals(110, (int) counter.getAndSet(5));
+        assertEquals(5, (int) counter.get());
+
+        counter.remove();
+        assertEquals(0, (int) counter.getAndSet(7));
+        assertEquals(2, initialized[0]);
+
+        counter.remove();
+        assertEquals(42, (int) counter.computeIfAbsent(
+                new ThreadLocal.Supplier<Integer>() {
+            public Integer get() {
+                return 42;
+            }
+        }));
+        assertEquals(42, (int) counter.computeIfAbsent(null));
+        assertEquals(2, initialized[0]);
+
+        // The function can grow the map out from under us.
+        final List<ThreadLocal<Object>> others
+                = new ArrayList<ThreadLocal<Object>>();
+        assertEquals(43, (int) counter.updateAndGet(
+                new ThreadLocal.UnaryOperator<Integer>() {
+            public Integer apply(Integer value) {
+                for (int i = 0; i < 1000; i++) {
+                    ThreadLocal<Object> other = new ThreadLocal<Object>();
+                    other.set(i);
+                    others.add(other);
+                }
+                return value + 1;
+            }
+        }));
+        assertEquals(43, (int) counter.get());
+    }
+
+    public void testUpdateAndGetOffHomeSlot() {
+        TestFactory factory = new TestFactory(false, 64);
+
+        // More thread locals than slots, so two of them share a home slot.
+        Map<Integer, ThreadLocal<Integer>> byHome
+                = new HashMap<Integer, ThreadLocal<Integer>>();
+        ThreadLocal<Integer> first = null;
+        ThreadLocal<Integer> second = null;
+        while (second == null) {
+            ThreadLocal<Integer> local = new ThreadLocal<Integer>(factory);
+            first = byHome.put(local.reference.hash & factory.map.mask,
+                    local);
+            if (first != null) {
+                second = local;
+            }
+        }
+        factory.map.put(first.reference, 1);
+        factory.map.put(second.reference, 2);
+        ThreadLocal.ThreadLocalMap map = factory.map;
+        int index = map.indexOf(second.reference);
+        assertTrue(index != (second.reference.hash & map.mask));
+
+        ThreadLocal.UnaryOperator<Integer> increment
+                = new ThreadLocal.UnaryOperator<Integer>() {
+            public Integer apply(Integer value) {
+                return value + 1;
+            }
+        };
+        assertEquals(3, (int) second.updateAndGet(increment));
+        assertEquals(3, (int) second.getAndSet(4));
+
+        // Updated in place.
+        assertSame(map, factory.map);
+        assertEquals(4, map.table[index + 1]);
+        assertEquals(1, map.lookup(first.reference));
+    }
+
+    public void testBinding() throws Exception {
+        final ThreadLocal<String> local = new ThreadLocal<String>();
+        local.set("a");
+        ThreadLocal.Binding<String> b = local.bind("b");
+        ThreadLocal.Binding<String> c = local.bind("c");
+        assertEquals("c", local.get());
+        c.close();
+        assertEquals("b", local.get());
+        c.close();
+        assertEquals("b", local.get());
+        b.close();
+        assertEquals("a", local.get());
+
+        local.remove();
+        local.with("x", new Runnable() {
+            public void run() {
+                ThreadLocal.Binding<?>[] bindings
+                        = new ThreadLocal.Binding<?>[1000];
+                for (int i = 0; i < bindings.length; i++) {
+                    bindings[i] = local.bind("y" + i);
+                }
+                for (int i = bindings.length - 1; i >= 0; i--) {
+                    assertEquals("y" + i, local.get());
+                    bindings[i].close();
+                }
+                assertEquals("x", local.get());
+            }
+        });
+        assertFalse(local.isPresent());
+
+        assertEquals("z", local.with("z", new Callable<String>() {
+            public String call() {
+                return local.get();
+            }
+        }));
+        assertFalse(local.isPresent());
+    }
+
+    public void testUnbindingLeavesNoTombstone()
+            throws InterruptedException {
+        final Object[][] tables = new Object[2][];
+        final Object[] values = new Object[4];
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                ThreadLocal.useMapStrategy(
+                        ThreadLocal.ThreadLocalMap.Strategy.LINEAR_PROBING);
+                Object[] table = threadLocals.table;
+                int mask = threadLocals.mask;
+
+                // Find a thread local whose home slot is free and a neighbor
+                // for the next slot. Dense tables grow to cover every index,
+                // so compare whole indices there. Indices come lowest first,
+                // so the neighbor has to come second.
+                ThreadLocal<Object> local;
+                ThreadLocal<Object> neighbor;
+                do {
+                    local = new ThreadLocal<Object>() {
+                        @Override
+                        protected Object initialValue() {
+                            return "initial";
+                        }
+                    };
+                    neighbor = new ThreadLocal<Object>();
+                } while ((ThreadLocal.dense()
+                        ? local.reference.hash + 2 != neighbor.reference.hash
+                        : ((local.reference.hash + 2) & mask)
+                        != (neighbor.reference.hash & mask))
+                        || table[local.reference.hash & mask] != null
+                        || table[neighbor.reference.hash & mask] != null);
+                neighbor.set("neighbor");
+
+                ThreadLocal.Binding<Object> binding = local.bind("bound");
+                tables[0] = threadLocals.table.clone();
+                binding.close();
+                tables[1] = threadLocals.table.clone();
+                values[0] = local.isPresent();
+                values[1] = local.get();
+                values[2] = neighbor.get();
+                values[3] = local.reference;
+            }
+        };
+        thread.start();
+        thread.join();
+
+        // The bound entry sat right before an occupied slot.
+        int home = -1;
+        for (int i = 0; i < tables[0].length; i += 2) {
+            if (tables[0][i] == values[3]) {
+                home = i;
+            }
+        }
+        assertTrue(home != -1);
+        assertNotNull(tables[0][(home + 2) & (tables[0].length - 1)]);
+
+        // Only check the slot we unbound. The thread may have inherited
+        // entries that the Cleaner replaced with tombstones meanwhile.
+        assertNotSame(ThreadLocal.TOMBSTONE, tables[1][home]);
+        assertEquals(false, values[0]);
+        assertEquals("initial", values[1]);
+        assertEquals("neighbor", values[2]);
+    }
+
+    public void testRemoveBeforeEmptySlot() {
+        TestFactory factory = new TestFactory(false, 32);
+        ThreadLocal<Object> local = new ThreadLocal<Object>();
+        factory.map.put(local.reference, "a");
+        factory.map.remove(local.reference);
+
+        // The next slot was empty, so we didn't leave a tombstone.
+        Object[] table = factory.map.table;
+        int home = local.reference.hash & factory.map.mask;
+        assertNull(table[home]);
+
+        // Same for ThreadLocal.remove(), which empties the slot itself.
+        factory.map.put(local.reference, "b");
+        local.remove(factory.map);
+        assertNull(table[home]);
+        assertNull(table[home + 1]);
+        assertSame(ThreadLocal.ABSENT, factory.map.lookup(local.reference));
+    }
+
+    public void testBulkOperations() throws InterruptedException {
+        final ThreadLocal<?>[] locals = new ThreadLocal<?>[100];
+        final Object[] values = new Object[locals.length];
+        for (int i = 0; i < locals.length; i++) {
+            if (i == 10) {
+                locals[i] = new InheritableThreadLocal<Object>();
+            } else if (i == 20) {
+                locals[i] = new ThreadLocal<Object>(true);
+                assertTrue(locals[i].directIndex != -1);
+            } else {
+                locals[i] = new ThreadLocal<Object>();
+            }
+            values[i] = i;
+        }
+
+        final Object[][] seen = new Object[3][locals.length];
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                // One entry exists, the rest don't.
+                ((ThreadLocal<Object>) locals[50]).set("old");
+                ThreadLocal.setAll(locals, values);
+                ThreadLocal.getAll(locals, seen[0]);
+
+                values[0] = "new";
+                ThreadLocal.setAll(locals, values);
+                ThreadLocal.getAll(locals, seen[1]);
+
+                ThreadLocal.removeAll(locals);
+                for (int i = 0; i < locals.length; i++) {
+                    seen[2][i] = locals[i].isPresent();
+                }
+            }
+        };
+        thread.start();
+        thread.join();
+
+        for (int i = 0; i < locals.length; i++) {
+            assertEquals(i, seen[0][i]);
+            assertEquals(i == 0 ? "new" : i, seen[1][i]);
+            assertEquals(false, seen[2][i]);
+        }
+
+        try {
+            ThreadLocal.setAll(locals, new Object[1]);
+            fail();
+        } catch (IllegalArgumentException expected) {}
+    }
+
+    public void testThreadLocalGroup() throws InterruptedException {
+        ThreadLocalGroup group = new ThreadLocalGroup();
+        final ThreadLocalGroup.Field<String> user = group.newField();
+        final ThreadLocalGroup.Field<String> locale = group.newField(
+                new ThreadLocal.Supplier<String>() {
+            public String get() {
+                return "en";
+            }
+        });
+
+        assertNull(user.get());
+        assertEquals("en", locale.get());
+        user.set("bob");
+        locale.set("fr");
+        assertEquals("bob", user.get());
+        assertEquals("fr", locale.get());
+        locale.remove();
+        assertEquals("en", locale.get());
+        assertEquals("bob", user.get());
+
+        final String[] seen = new String[2];
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                seen[0] = user.get();
+                seen[1] = locale.get();
+            }
+        };
+        thread.start();
+        thread.join();
+        assertNull(seen[0]);
+        assertEquals("en", seen[1]);
+
+        group.remove();
+        assertNull(user.get());
+
+        try {
+            group.newField();
+            fail();
+        } catch (IllegalStateException expected) {}
+    }
+
+    public void testWithInitial() throws InterruptedException {
+        final ThreadLocal<String> local = ThreadLocal.withInitial(
+                new ThreadLocal.Supplier<String>() {
+            public String get() {
+                return Thread.currentThread().getName();
+            }
+        });
+        final InheritableThreadLocal<String> inheritable
+                = InheritableThreadLocal.withInitial(
+                        new ThreadLocal.Supplier<String>() {
+            public String get() {
+                return "initial";
+            }
+        });
+        assertEquals(Thread.currentThread().getName(), local.get());
+        inheritable.set("parent");
+
+        final String[] seen = new String[2];
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                seen[0] = local.get();
+                seen[1] = inheritable.get();
+            }
+        }, "child");
+        thread.start();
+        thread.join();
+        assertEquals("child", seen[0]);
+        assertEquals("parent", seen[1]);
+
+        try {
+            ThreadLocal.withInitial(null);
+            fail();
+        } catch (NullPointerException expected) {}
+    }
+
+    public void testLightweight() throws InterruptedException {
+        ThreadLocal<String> initialized = new ThreadLocal.Lightweight<String>() {
+            @Override
+            protected String initialValue() {
+                return "initial";
+            }
+        };
+        ThreadLocal<String> local = new ThreadLocal.Lightweight<String>();
+        assertEquals("initial", initialized.get());
+        local.set("value");
+        assertEquals("value", local.get());
+        local.remove();
+        assertNull(local.get());
+
+        // The Cleaner removes the entry once the thread local is gone.
+        local.set("value");
+        ThreadLocal.ThreadLocalReference<String> reference = local.reference;
+        local = null;
+        for (int i = 0; i < 100 && contains(reference); i++) {
+            System.gc();
+            Thread.sleep(10);
+            // Robin Hood maps sweep when we modify them.
+            new ThreadLocal<Object>().remove();
+        }
+        assertFalse(contains(reference));
+    }
+
+    /**
+     * Returns true if the current thread's map contains the given key.
+     */
+    private static boolean contains(ThreadLocal.ThreadLocalReference<?> key) {
+        for (Object[] table : Thread.currentThread().threadLocals.tables()) {
+            for (int i = 0; i < table.length; i += 2) {
+                if (table[i] == key) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    public void testTablePool() {
+        int length = ThreadLocal.ThreadLocalMap.TablePool.MAXIMUM_LENGTH;
+        Object[] table = new Object[length];
+        table[0] = "key";
+        table[1] = "value";
+        ThreadLocal.ThreadLocalMap.TablePool.release(table);
+        assertSame(table, ThreadLocal.ThreadLocalMap.TablePool.take(length));
+        assertNull(table[0]);
+        assertNull(table[1]);
+
+        // Too long to pool.
+        table = new Object[length << 1];
+        ThreadLocal.ThreadLocalMap.TablePool.release(table);
+        assertNotSame(table,
+                ThreadLocal.ThreadLocalMap.TablePool.take(length << 1));
+    }
+
+    public void testHashPoolReusesLatestHash() {
+        ThreadLocal.HashPool pool = new ThreadLocal.HashPool();
+        int[] batch = new int[ThreadLocal.HashPool.BATCH_SIZE];
+        assertTrue(pool.isEmpty());
+        assertEquals(0, pool.allocate(batch));
+        for (int i = 0; i < 20; i++) {
+            pool.release(i << 1);
+        }
+        assertEquals(16, pool.allocate(batch));
+        assertEquals(38, batch[15]);
+        assertEquals(36, batch[14]);
+        assertEquals(8, batch[0]);
+        pool.release(100);
+        assertEquals(5, pool.allocate(batch));
+        assertEquals(100, batch[4]);
+        assertTrue(pool.isEmpty());
+    }
+
+    public void testIndexPoolReusesLowestIndex() {
+        ThreadLocal.IndexPool pool = new ThreadLocal.IndexPool();
+        assertEquals(0, pool.allocate(null));
+        assertEquals(1, pool.allocate(null));
+        assertEquals(2, pool.allocate(null));
+        pool.release(2);
+        pool.release(0);
+        assertEquals(0, pool.allocate(null));
+        assertEquals(2, pool.allocate(null));
+        assertEquals(3, pool.allocate(null));
+    }
+
+    /**
+     * Holds a single map of the given kind, standing in for a thread.
+     */
+    static class TestFactory extends ThreadLocal.ThreadLocalMap.Factory {
+
+        final boolean robinHood;
+        ThreadLocal.ThreadLocalMap map;
+
+        TestFactory(boolean robinHood, int length) {
+            this.robinHood = robinHood;
+            newMap(Thread.currentThread(), length);
+        }
+
+        ThreadLocal.ThreadLocalMap newMap(Thread current, int length) {
+            return map = robinHood
+                    ? new RobinHoodThreadLocalMap(this, length)
+                    : new ThreadLocal.LinearProbingMap(this, length);
+        }
+
+        ThreadLocal.ThreadLocalMap getMap(Thread current) {
+            return map;
+        }
+    }
+
+    public void testRobinHoodMap() {
+        final ThreadLocal.ThreadLocalMap[] holder
+                = new ThreadLocal.ThreadLocalMap[1];
+        ThreadLocal.ThreadLocalMap.Factory factory
+                = new ThreadLocal.ThreadLocalMap.Factory() {
+            ThreadLocal.ThreadLocalMap newMap(Thread current, int length) {
+                return holder[0] = new RobinHoodThreadLocalMap(this, length);
+            }
+
+            ThreadLocal.ThreadLocalMap getMap(Thread current) {
+                return holder[0];
+            }
+        };
+        factory.newMap(Thread.currentThread(), 32);
+
+        List<ThreadLocal<Object>> locals = new ArrayList<ThreadLocal<Object>>();
+        for (int i = 0; i < 100; i++) {
+            ThreadLocal<Object> local = new ThreadLocal<Object>();
+            locals.add(local);
+            holder[0].maybeRehash(local.reference).put(local.reference, i);
+        }
+        for (int i = 0; i < 100; i += 2) {
+            holder[0].remove(locals.get(i).reference);
+        }
+        for (int i = 0; i < 100; i++) {
+            Object expected = i % 2 == 0 ? null : i;
+            assertEquals(expected, holder[0].getAfterMiss(locals.get(i)));
+        }
+    }
+
+    public void testRobinHoodMapRemovesReclaimedEntries() {
+        TestFactory factory = new TestFactory(true, 64);
+        List<ThreadLocal<Object>> locals = new ArrayList<ThreadLocal<Object>>();
+        for (int i = 0; i < 10; i++) {
+            ThreadLocal<Object> local = new ThreadLocal<Object>();
+            locals.add(local);
+            factory.map.put(local.reference, i);
+        }
+
+        // The Cleaner hands over keys, and the map holds them until the
+        // next modification removes the entries. We stand in for the
+        // Cleaner, and never let go, so the keys keep their hashes.
+        ThreadLocal.ThreadLocalReference<?> first = locals.get(0).reference;
+        ThreadLocal.ThreadLocalReference<?> second = locals.get(1).reference;
+        first.hold();
+        second.hold();
+        factory.map.expunge(first);
+        factory.map.expunge(second);
+        assertEquals(2, first.holds);
+        assertEquals(0, factory.map.lookup(first));
+        factory.map.remove(locals.get(9).reference);
+        assertEquals(1, first.holds);
+        assertEquals(1, second.holds);
+        for (int i = 0; i < 10; i++) {
+            Object expected = i < 2 || i == 9 ? ThreadLocal.ABSENT : i;
+            assertEquals(expected, factory.map.lookup(locals.get(i).reference));
+        }
+
+        // Settling the map before we copy or count its entries does, too.
+        ThreadLocal.ThreadLocalReference<?> third = locals.get(2).reference;
+        third.hold();
+        factory.map.expunge(third);
+        factory.map.settle();
+        assertEquals(1, third.holds);
+        assertEquals(ThreadLocal.ABSENT, factory.map.lookup(third));
+    }
+
+    public void testLinearProbingMapShrinks() {
+        assertShrinks(new TestFactory(false, 1024));
+    }
+
+    public void testLinearProbingMapShrinksAfterCleanup() {
+        TestFactory factory = new TestFactory(false, 1024);
+        List<ThreadLocal<Object>> locals = new ArrayList<ThreadLocal<Object>>();
+        for (int i = 0; i < 100; i++) {
+            ThreadLocal<Object> local = new ThreadLocal<Object>();
+            locals.add(local);
+            factory.map.put(local.reference, i);
+        }
+
+        // Tombstones from both the Cleaner and the owning thread count.
+        ThreadLocal<Object> last = locals.get(99);
+        for (int i = 0; i < 50; i++) {
+            factory.map.expunge(locals.get(i).reference);
+        }
+        for (int i = 50; i < 99; i++) {
+            factory.map.remove(locals.get(i).reference);
+        }
+
+        ThreadLocal.ThreadLocalMap shrunk
+                = factory.map.maybeRehash(last.reference);
+        assertSame(factory.map, shrunk);
+        if (!ThreadLocal.dense()) {
+            // Dense tables must still cover the index.
+            assertTrue(shrunk.capacity() < 512);
+        }
+        assertEquals(99, get(shrunk, last));
+    }
+
+    public void testRobinHoodMapShrinks() {
+        assertShrinks(new TestFactory(true, 1024));
+    }
+
+    public void testIncrementalMigration() {
+        TestFactory factory = new TestFactory(false, 256);
+        ThreadLocal.LinearProbingMap previous
+                = (ThreadLocal.LinearProbingMap) factory.map;
+        List<ThreadLocal<Object>> locals = new ArrayList<ThreadLocal<Object>>();
+        for (int i = 0; i < 50; i++) {
+            ThreadLocal<Object> local = new ThreadLocal<Object>();
+            locals.add(local);
+            previous.put(local.reference, i);
+        }
+
+        ThreadLocal.LinearProbingMap map = (ThreadLocal.LinearProbingMap)
+                factory.newMap(Thread.currentThread(), 512);
+        map.migrateFrom(previous);
+
+        // Updates and removals must win over stale copies.
+        map.put(locals.get(0).reference, "new");
+        map.remove(locals.get(1).reference);
+        assertEquals(2, get(map, locals.get(2)));
+
+        map.settle();
+        assertEquals("new", get(map, locals.get(0)));
+        assertNull(get(map, locals.get(1)));
+        for (int i = 2; i < 50; i++) {
+            assertEquals(i, get(map, locals.get(i)));
+        }
+    }
+
+    public void testHotEntryMovesHome() {
+        if (ThreadLocal.dense()) {
+            // Dense maps keep every entry in its home slot.
+            return;
+        }
+
+        TestFactory factory = new TestFactory(false, 32);
+        ThreadLocal.ThreadLocalMap map = factory.map;
+
+        // Find two thread locals with the same home slot.
+        ThreadLocal<Object> first = new ThreadLocal<Object>();
+        int home = first.reference.hash & map.mask;
+        ThreadLocal<Object> second;
+        do {
+            second = new ThreadLocal<Object>();
+        } while ((second.reference.hash & map.mask) != home);
+
+        map.put(first.reference, "first");
+        map.put(second.reference, "second");
+        assertSame(first.reference, map.table[home]);
+
+        for (int i = 0; i < ThreadLocal.ThreadLocalMap.RELOCATION_INTERVAL;
+                i++) {
+            assertEquals("second", get(map, second));
+        }
+        assertSame(second.reference, map.table[home]);
+        assertEquals("second", get(map, second));
+        assertEquals("first", get(map, first));
+    }
+
+    public void testSegmentedMap() {
+        TestFactory factory = new TestFactory(false, 32);
+        SegmentedThreadLocalMap map = new SegmentedThreadLocalMap(factory,
+                SegmentedThreadLocalMap.MINIMUM_LENGTH);
+        factory.map = map;
+
+        // Enough entries to split chunks and grow the directory.
+        List<ThreadLocal<Object>> locals = new ArrayList<ThreadLocal<Object>>();
+        for (int i = 0; i < 20000; i++) {
+            ThreadLocal<Object> local = new ThreadLocal<Object>();
+            locals.add(local);
+            map.put(local.reference, i);
+        }
+        for (int i = 0; i < 20000; i += 2) {
+            map.remove(locals.get(i).reference);
+        }
+
+        int entries = 0;
+        for (Object[] table : map.tables()) {
+            // Dense hashes pack entries closer than a chunk can hold.
+            assertTrue(table.length <= (ThreadLocal.dense()
+                    ? SegmentedThreadLocalMap.MAXIMUM_CHUNK_LENGTH
+                    : SegmentedThreadLocalMap.CHUNK_LENGTH));
+            for (int i = 0; i < table.length; i += 2) {
+                if (table[i] instanceof ThreadLocal.ThreadLocalReference<?>) {
+                    entries++;
+                }
+            }
+        }
+        assertEquals(10000, entries);
+
+        for (int i = 0; i < 20000; i++) {
+            assertEquals(i % 2 == 0 ? null : i, get(map, locals.get(i)));
+        }
+
+        // Handles can't track entries in chunks, but they still work.
+        ThreadLocal<Object> local = new ThreadLocal<Object>(factory);
+        ThreadLocal.Handle<Object> handle = local.handle();
+        handle.set("a");
+        assertEquals("a", handle.get());
+        local.set("b");
+        assertEquals("b", handle.get());
+    }
+
+    public void testTinyMap() {
+        TestFactory factory = new TestFactory(false, 32);
+        TinyThreadLocalMap tiny = new TinyThreadLocalMap(factory);
+        factory.map = tiny;
+
+        List<ThreadLocal<Object>> locals = new ArrayList<ThreadLocal<Object>>();
+        for (int i = 0; i < 4; i++) {
+            ThreadLocal<Object> local = new ThreadLocal<Object>();
+            locals.add(local);
+            assertSame(tiny, tiny.maybeRehash(local.reference));
+            tiny.put(local.reference, i);
+        }
+        tiny.remove(locals.get(0).reference);
+        assertNull(get(tiny, locals.get(0)));
+        for (int i = 1; i < 4; i++) {
+            assertEquals(i, get(tiny, locals.get(i)));
+        }
+
+        // A put() into a full map upgrades it, too.
+        TestFactory full = new TestFactory(false, 32);
+        TinyThreadLocalMap fullTiny = new TinyThreadLocalMap(full);
+        full.map = fullTiny;
+        for (int i = 0; i < 5; i++) {
+            fullTiny.put(new ThreadLocal<Object>().reference, i);
+        }
+        assertTrue(full.map instanceof ThreadLocal.LinearProbingMap);
+
+        // The fifth entry upgrades the map.
+        ThreadLocal<Object> local = new ThreadLocal<Object>();
+        ThreadLocal.ThreadLocalMap map = tiny.maybeRehash(local.reference);
+        assertTrue(map instanceof ThreadLocal.LinearProbingMap);
+        map.put(local.reference, 4);
+        assertEquals(4, get(map, local));
+        for (int i = 0; i < 4; i++) {
+            assertEquals(i == 0 ? null : i, get(map, locals.get(i)));
+        }
+    }
+
+    public void testInheritFromUnifiedMap() {
+        ThreadLocal<Object> local = new ThreadLocal<Object>();
+        InheritableThreadLocal<Object> inheritable
+                = new InheritableThreadLocal<Object>() {
+            @Override
+            protected Object childValue(Object parentValue) {
+                return "child of " + parentValue;
+            }
+        };
+
+        // A parent map that holds both kinds of thread locals.
+        TestFactory parent = new TestFactory(false, 32);
+        parent.map.put(local.reference, "normal");
+        parent.map.put(inheritable.reference, "inheritable");
+
+        TestFactory child = new TestFactory(false, 32);
+        InheritableThreadLocal.inheritValues(parent.map, child.map);
+        assertEquals("child of inheritable", get(child.map, inheritable));
+        assertNull(get(child.map, local));
+    }
+
+    public void testInheritedMapOnlyHoldsInheritableEntries() {
+        TestFactory parent = new TestFactory(false, 1024);
+        List<ThreadLocal<Object>> locals = new ArrayList<ThreadLocal<Object>>();
+        for (int i = 0; i < 100; i++) {
+            ThreadLocal<Object> local = new ThreadLocal<Object>();
+            locals.add(local);
+            parent.map.put(local.reference, i);
+        }
+        assertNull(ThreadLocal.createInheritedMap(parent.map));
+
+        InheritableThreadLocal<Object> inheritable
+                = new InheritableThreadLocal<Object>();
+        parent.map.put(inheritable.reference, "inheritable");
+        ThreadLocal.ThreadLocalMap child
+                = ThreadLocal.createInheritedMap(parent.map);
+        assertEquals("inheritable", get(child, inheritable));
+        if (!ThreadLocal.dense()) {
+            // Dense tables must cover the index.
+            assertTrue(child.table.length
+                    <= ThreadLocal.ThreadLocalMap.INITIAL_LENGTH);
+        }
+    }
+
+    public void testAdaptiveStrategy() {
+        ThreadLocal.ThreadLocalMap.Strategy adaptive
+                = ThreadLocal.ThreadLocalMap.Strategy.ADAPTIVE;
+        TestFactory factory = new TestFactory(false, 64);
+        assertTrue(adaptive.newMap(factory, 8, null)
+                instanceof TinyThreadLocalMap);
+        assertTrue(adaptive.newMap(factory, 128, factory.map)
+                instanceof ThreadLocal.LinearProbingMap);
+
+        // Rebuilt without growing, but not because of tombstones.
+        assertTrue(adaptive.newMap(factory, 64, factory.map)
+                instanceof ThreadLocal.LinearProbingMap);
+
+        // Tombstones filled it up.
+        ((ThreadLocal.LinearProbingMap) factory.map).churned = true;
+        ThreadLocal.ThreadLocalMap churned
+                = adaptive.newMap(factory, 64, factory.map);
+        assertTrue(churned instanceof RobinHoodThreadLocalMap);
+        assertTrue(adaptive.newMap(factory, 128, churned)
+                instanceof RobinHoodThreadLocalMap);
+
+        assertTrue(adaptive.newMap(factory,
+                SegmentedThreadLocalMap.MINIMUM_LENGTH, churned)
+                instanceof SegmentedThreadLocalMap);
+    }
+
+    public void testInvalidStrategyFallsBack() {
+        assertSame(ThreadLocal.ThreadLocalMap.Strategy.CONFIGURED,
+                ThreadLocal.ThreadLocalMap.Strategy.forName("NoSuchStrategy"));
+    }
+
+    public void testUseMapStrategy() {
+        List<ThreadLocal<Object>> locals = new ArrayList<ThreadLocal<Object>>();
+        for (int i = 0; i < 10; i++) {
+            ThreadLocal<Object> local = new ThreadLocal<Object>();
+            locals.add(local);
+            local.set(i);
+        }
+
+        try {
+            ThreadLocal.useMapStrategy(
+                    ThreadLocal.ThreadLocalMap.Strategy.ROBIN_HOOD);
+            assertTrue(Thread.currentThread().threadLocals
+                    instanceof RobinHoodThreadLocalMap);
+            for (int i = 0; i < 10; i++) {
+                assertEquals(i, locals.get(i).get());
+            }
+        } finally {
+            ThreadLocal.useMapStrategy(
+                    ThreadLocal.ThreadLocalMap.Strategy.defaultStrategy());
+        }
+        for (int i = 0; i < 10; i++) {
+            assertEquals(i, locals.get(i).get());
+        }
+    }
+
+    public void testFlagsTakeEffect() throws Exception {
+        assertEquals("dense=true unified=true direct=true"
+                + " map=RobinHoodThreadLocalMap", probeFlags(
+                "-Djava.lang.ThreadLocal.dense=true",
+                "-Djava.lang.ThreadLocal.unified=true",
+                "-Djava.lang.ThreadLocal.strategy=robinHood"));
+        assertEquals("dense=false unified=false direct=false"
+                + " map=LinearProbingMap", probeFlags(
+                "-Djava.lang.ThreadLocal.directSlots=0"));
+    }
+
+    /**
+     * Runs {@link FlagProbe} in a new VM with the given options and
+     * returns what it printed.
+     */
+    private static String probeFlags(String... options) throws Exception {
+        List<String> command = new ArrayList<String>();
+        command.add(System.getProperty("java.home") + "/bin/java");
+        // Our classes, JUnit and the tests are all on the boot class path.
+        command.add("-Xbootclasspath:"
+                + System.getProperty("sun.boot.class.path"));
+        for (String option : options) {
+            command.add(option);
+        }
+        command.add(FlagProbe.class.getName());
+
+        Process process = new ProcessBuilder(command)
+                .redirectErrorStream(true).start();
+        StringBuilder output = new StringBuilder();
+        java.io.Reader in = new java.io.InputStreamReader(
+                process.getInputStream());
+        char[] buffer = new char[256];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            output.append(buffer, 0, read);
+        }
+        in.close();
+        assertEquals(output.toString(), 0, process.waitFor());
+        return output.toString().trim();
+    }
+
+    /**
+     * Prints the modes that are active in this VM. Run by {@link
+     * #probeFlags}.
+     */
+    static class FlagProbe {
+        public static void main(String[] args) throws Exception {
+            final ThreadLocal<Object> direct = new ThreadLocal<Object>(true);
+            final Object[] map = new Object[1];
+            Thread thread = new Thread() {
+                public void run() {
+                    new ThreadLocal<Object>().set("value");
+                    map[0] = threadLocals;
+                }
+            };
+            thread.start();
+            thread.join();
+            System.out.println("dense=" + ThreadLocal.dense()
+                    + " unified=" + ThreadLocal.unified()
+                    + " direct=" + (direct.directIndex != -1)
+                    + " map=" + map[0].getClass().getSimpleName());
+        }
+    }
+
+    /**
+     * Looks up a value the way {@link ThreadLocal#get()} does.
+     */
+    private static Object get(ThreadLocal.ThreadLocalMap map,
+            ThreadLocal<?> local) {
+        int index = local.reference.hash & map.mask;
+        Object[] table = map.table;
+        if (table[index] != local.reference
+                && map instanceof SegmentedThreadLocalMap) {
+            ThreadLocal.ThreadLocalMap chunk = ((SegmentedThreadLocalMap) map)
+                    .chunkFor(local.reference.hash);
+            index = local.reference.hash & chunk.mask;
+            table = chunk.table;
+        }
+        if (table[index] == local.reference) {
+            return table[index + 1];
+        }
+        return map.getAfterMiss(local);
+    }
+
+    private void assertShrinks(TestFactory factory) {
+        List<ThreadLocal<Object>> locals = new ArrayList<ThreadLocal<Object>>();
+        for (int i = 0; i < 100; i++) {
+            ThreadLocal<Object> local = new ThreadLocal<Object>();
+            locals.add(local);
+            factory.map.put(local.reference, i);
+        }
+        ThreadLocal<Object> last = locals.get(99);
+        // Dense tables may have to grow to cover the index.
+        ThreadLocal.ThreadLocalMap grown
+                = factory.map.maybeRehash(last.reference);
+        assertSame(factory.map, grown);
+
+        for (int i = 0; i < 99; i++) {
+            factory.map.remove(locals.get(i).reference);
+        }
+        ThreadLocal.ThreadLocalMap shrunk
+                = factory.map.maybeRehash(last.reference);
+        assertSame(factory.map, shrunk);
+        if (ThreadLocal.dense()) {
+            // Dense tables must still cover the index, which depends on
+            // how many thread locals other tests created.
+            int capacity = ThreadLocal.ThreadLocalMap.MINIMUM_CAPACITY;
+            while ((capacity << 1) < last.reference.hash + 2) {
+                capacity <<= 1;
+            }
+            assertEquals(capacity, shrunk.capacity());
+            assertTrue(shrunk.mask >= last.reference.hash);
+        } else {
+            assertEquals(ThreadLocal.ThreadLocalMap.MINIMUM_CAPACITY,
+                    shrunk.capacity());
+        }
+        assertEquals(99, get(shrunk, last));
+    }
 }